@@ -9,7 +9,8 @@ fi
 if [ ! -f "slf4j-api.jar" ]; then
   wget https://s3.us-east-2.amazonaws.com/yaskawa-yii/SmartPendant/extension/slf4j-api.jar
 fi
-# not actually needed for building the client code that uses the API, but may be used by extensions:
+# not actually needed for building the client code that uses the API, but may be used by extensions
+#  (or the SDK's own binding to the extension log, yaskawa-ext-slf4j-2.2.0.jar - only one binding may be used):
 if [ ! -f "slf4j-simple.jar" ]; then
   wget https://s3.us-east-2.amazonaws.com/yaskawa-yii/SmartPendant/extension/slf4j-simple.jar
 fi
@@ -18,9 +19,11 @@ cd ..
 cd gen-java
 javac -Xlint:deprecation -cp ../lib/libthrift-0.11.0.jar:../lib/slf4j-api.jar yaskawa/ext/api/*.java
 cd ..
-javac -Xlint:deprecation -Xlint:unchecked -cp lib/libthrift-0.11.0.jar:lib/slf4j-api.jar:gen-java yaskawa/ext/*.java
+javac -Xlint:deprecation -Xlint:unchecked -cp lib/libthrift-0.11.0.jar:lib/slf4j-api.jar:gen-java yaskawa/ext/*.java org/slf4j/impl/*.java
 cd gen-java
 jar cf ../yaskawa-ext-2.2.0.jar yaskawa
 cd ..
 jar uf yaskawa-ext-2.2.0.jar yaskawa
+# SLF4J binding to the extension log - opt-in, by adding it to the class path in place of e.g. slf4j-simple.jar
+jar cf yaskawa-ext-slf4j-2.2.0.jar org
 
@@ -0,0 +1,38 @@
+package org.slf4j.impl;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.spi.LoggerFactoryBinder;
+
+import yaskawa.ext.ExtensionLoggerFactory;
+
+
+/**
+ * Binds SLF4J 1.7 to the extension log - see yaskawa.ext.ExtensionLoggerFactory.
+ * Packaged apart from the SDK, as yaskawa-ext-slf4j-2.2.0.jar (see build.sh), so extensions opt in by
+ *  adding it to the class path; only one SLF4J binding should be there, so leave out e.g. slf4j-simple.jar.
+ */
+public class StaticLoggerBinder implements LoggerFactoryBinder
+{
+    // the SLF4J API version this binding is compiled against
+    public static String REQUESTED_API_VERSION = "1.7.25"; // !final, so the compiler won't inline it
+
+    public static final StaticLoggerBinder getSingleton()
+    {
+        return SINGLETON;
+    }
+
+    public ILoggerFactory getLoggerFactory()
+    {
+        return ExtensionLoggerFactory.instance();
+    }
+
+    public String getLoggerFactoryClassStr()
+    {
+        return ExtensionLoggerFactory.class.getName();
+    }
+
+
+    private static final StaticLoggerBinder SINGLETON = new StaticLoggerBinder();
+
+    private StaticLoggerBinder() {}
+}
@@ -0,0 +1,29 @@
+package org.slf4j.impl;
+
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.spi.MDCAdapter;
+
+
+/** MDC support for the extension log binding (context is kept, but not included in messages) */
+public class StaticMDCBinder
+{
+    public static final StaticMDCBinder SINGLETON = new StaticMDCBinder();
+
+    public static final StaticMDCBinder getSingleton()
+    {
+        return SINGLETON;
+    }
+
+    public MDCAdapter getMDCA()
+    {
+        return new BasicMDCAdapter();
+    }
+
+    public String getMDCAdapterClassStr()
+    {
+        return BasicMDCAdapter.class.getName();
+    }
+
+
+    private StaticMDCBinder() {}
+}
@@ -0,0 +1,32 @@
+package org.slf4j.impl;
+
+import org.slf4j.IMarkerFactory;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.spi.MarkerFactoryBinder;
+
+
+/** Marker support for the extension log binding (markers are ignored when logging) */
+public class StaticMarkerBinder implements MarkerFactoryBinder
+{
+    public static final StaticMarkerBinder SINGLETON = new StaticMarkerBinder();
+
+    public static StaticMarkerBinder getSingleton()
+    {
+        return SINGLETON;
+    }
+
+    public IMarkerFactory getMarkerFactory()
+    {
+        return markerFactory;
+    }
+
+    public String getMarkerFactoryClassStr()
+    {
+        return BasicMarkerFactory.class.getName();
+    }
+
+
+    private final IMarkerFactory markerFactory = new BasicMarkerFactory();
+
+    private StaticMarkerBinder() {}
+}
@@ -0,0 +1,9 @@
+#! /bin/bash
+
+# Build & run the SDK tests (after build.sh) - each test class has a main() that throws on failure
+CP=lib/libthrift-0.11.0.jar:lib/slf4j-api.jar:yaskawa-ext-2.2.0.jar
+mkdir -p test-classes
+javac -Xlint:deprecation -Xlint:unchecked -cp $CP -d test-classes test/yaskawa/ext/*.java || exit 1
+for t in test/yaskawa/ext/*Test.java; do
+  java -cp $CP:test-classes yaskawa.ext.$(basename $t .java) || exit 1
+done
@@ -0,0 +1,155 @@
+package yaskawa.ext;
+
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.*;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Plain calls merged by the actor (see MergedCalls) are pipelined, each getting its own reply
+ *  or failure, and a call making more than one API call is refused rather than misread.
+ * A caller whose deadline passes while its call is queued gets a timeout, and the call is withdrawn.
+ * Run by test.sh
+ */
+public class ActorTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        mergedCallsArePipelined();
+        multipleCallsRefused();
+        queuedCallTimesOut();
+        System.out.println("ActorTest passed");
+    }
+
+    static void mergedCallsArePipelined() throws Exception
+    {
+        try (var server = new ServerSocket(0)) {
+            var queued = new AtomicBoolean();
+            var service = new Thread(() -> serve(server, queued));
+            service.setDaemon(true);
+            service.start();
+
+            var conn = new Connection("localhost", server.getLocalPort(), new ConnectionOptions());
+            var texts = List.of("a", "b", "fail", "d", "e");
+            var calls = new ArrayList<Extension.Call<?>>();
+            var results = new ArrayList<CompletableFuture<Object>>();
+            for(var text : texts) {
+                calls.add(c -> client(c).version(text));
+                results.add(new CompletableFuture<Object>());
+            }
+
+            MergedCalls.run(conn, calls, results);
+
+            check(queued.get(), "calls not pipelined");
+            for(int i = 0; i < texts.size(); i++) {
+                var result = results.get(i);
+                if (texts.get(i).equals("fail")) {
+                    check(result.isCompletedExceptionally(), "failed call completed");
+                    continue;
+                }
+                check(texts.get(i).equals(result.getNow(null)), "call "+i+" got "+result);
+            }
+            check(!conn.broken, "connection marked broken by a call's failure");
+
+            // the stream is in sync for the next call
+            check("next".equals(client(conn).version("next")), "reply left unread");
+            conn.close();
+        }
+    }
+
+    static void multipleCallsRefused() throws Exception
+    {
+        try (var server = new ServerSocket(0)) {
+            var service = new Thread(() -> serve(server, new AtomicBoolean()));
+            service.setDaemon(true);
+            service.start();
+
+            var conn = new Connection("localhost", server.getLocalPort(), new ConnectionOptions());
+            var calls = new ArrayList<Extension.Call<?>>();
+            var results = new ArrayList<CompletableFuture<Object>>();
+            calls.add(c -> client(c).version("a") + client(c).version("b"));
+            calls.add(c -> client(c).version("c"));
+            for(int i = 0; i < calls.size(); i++)
+                results.add(new CompletableFuture<Object>());
+
+            fails(IllegalStateException.class, () -> MergedCalls.run(conn, calls, results), "call making two calls was merged");
+            check(conn.broken, "connection not marked broken");
+            check(results.get(0).isCompletedExceptionally() && results.get(1).isCompletedExceptionally(), "results not failed");
+            conn.close();
+        }
+    }
+
+    static void queuedCallTimesOut() throws Exception
+    {
+        var actor = new Actor(null, false);
+        var release = new CountDownLatch(1);
+        var busy = actor.new Task(Priority.Normal, new CallContext(System.nanoTime() + 10000*1000000L)) {
+            void run()
+            {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+                future.complete(null);
+            }
+        };
+        actor.enqueue(busy);
+
+        var task = actor.new CallTask<String>(null, Priority.Normal, c -> "ran", new CallContext(System.nanoTime() + 100*1000000L));
+        actor.enqueue(task);
+        var e = fails(TTransportException.class, task::await, "queued call didn't time out");
+        checkEquals(TTransportException.TIMED_OUT, e.getType(), "failure type");
+        check(!actor.queues.get(Priority.Normal).contains(task), "timed out call left queued");
+
+        release.countDown();
+        busy.await();
+        actor.stop();
+    }
+
+    // a client per connection (or view of it), as Connection keeps
+    static PipelineTest.VersionClient client(Connection conn)
+    {
+        return clients.computeIfAbsent(conn, c -> new PipelineTest.VersionClient(c.protocol));
+    }
+
+    static final Map<Connection, PipelineTest.VersionClient> clients = new IdentityHashMap<Connection, PipelineTest.VersionClient>();
+
+    // echo each request's text (failing "fail" with an application exception), noting if a request
+    //  had already arrived by the time the previous one was answered
+    static void serve(ServerSocket server, AtomicBoolean queued)
+    {
+        try (var socket = server.accept()) {
+            var in = socket.getInputStream();
+            var protocol = new TBinaryProtocol(new TIOStreamTransport(in, socket.getOutputStream()));
+            while (true) {
+                var request = protocol.readMessageBegin();
+                var args = new PipelineTest.Args();
+                args.read(protocol);
+                protocol.readMessageEnd();
+
+                Thread.sleep(20);
+                if (in.available() > 0)
+                    queued.set(true);
+
+                if ("fail".equals(args.text)) {
+                    protocol.writeMessageBegin(new TMessage(request.name, TMessageType.EXCEPTION, request.seqid));
+                    new TApplicationException(TApplicationException.INTERNAL_ERROR, "failed").write(protocol);
+                    protocol.writeMessageEnd();
+                    protocol.getTransport().flush();
+                }
+                else
+                    PipelineTest.reply(protocol, new TMessage(request.name, TMessageType.REPLY, request.seqid), args.text);
+            }
+        } catch (Exception e) {
+            // client closed the connection
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Only a List of Double given directly becomes a vValue; nested in a List, array or Map it stays
+ *  an aValue, as properties set via Pendant.setProperty() etc. always had.
+ * Run by test.sh
+ */
+public class AnyConvertersTest
+{
+    public static void main(String[] args)
+    {
+        var doubles = List.of(1.0, 2.0);
+
+        check(AnyConverters.toAny(doubles).isSetVValue(), "List of Double not a vValue");
+
+        var array = AnyConverters.array(List.of(doubles, "x"));
+        check(array.get(0).isSetAValue(), "nested List of Double in array(List) is "+array.get(0));
+        check(array.get(0).getAValue().get(1).getRValue() == 2.0, "nested element "+array.get(0));
+
+        array = AnyConverters.array(new Object[] { doubles });
+        check(array.get(0).isSetAValue(), "nested List of Double in array(Object[]) is "+array.get(0));
+
+        var map = AnyConverters.map(Map.of("limits", doubles));
+        check(map.get("limits").isSetAValue(), "List of Double in map() is "+map.get("limits"));
+
+        var any = AnyConverters.toAny(List.of(List.of(doubles), Map.of("v", doubles)));
+        check(any.getAValue().get(0).getAValue().get(0).isSetAValue(), "doubly nested List of Double is "+any);
+        check(any.getAValue().get(1).getMValue().get("v").isSetAValue(), "List of Double in nested Map is "+any);
+
+        System.out.println("AnyConvertersTest passed");
+    }
+}
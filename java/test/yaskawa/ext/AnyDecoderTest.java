@@ -0,0 +1,73 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * AnyDecoder reverses AnyConverters.toAny(), converts between numeric kinds, and fails with
+ *  ClassCastException on a mismatch unless given a default.
+ * Run by test.sh
+ */
+public class AnyDecoderTest
+{
+    public static void main(String[] args)
+    {
+        roundTrip();
+        accessors();
+        as();
+        System.out.println("AnyDecoderTest passed");
+    }
+
+    static void roundTrip()
+    {
+        var value = Map.of("name", "arm", "count", 3L, "on", true,
+                           "items", List.of(1.5, "x"), "nested", Map.of("k", 2.0));
+        var decoded = AnyDecoder.decode(AnyConverters.toAny(value));
+        checkEquals(value, decoded, "decoded");
+
+        var v = (double[])AnyDecoder.decode(AnyConverters.toAny(List.of(1.0, 2.0)));
+        check(Arrays.equals(v, new double[] { 1.0, 2.0 }), "vValue decoded as "+Arrays.toString(v));
+
+        checkEquals(null, AnyDecoder.decode(null), "null");
+        checkEquals(null, AnyDecoder.decode(new Any()), "unset");
+    }
+
+    static void accessors()
+    {
+        checkEquals(3.0, AnyDecoder.real(Any.iValue(3)), "real of iValue");
+        checkEquals(2L, AnyDecoder.integer(Any.rValue(2.5)), "integer of rValue");
+        checkEquals(true, AnyDecoder.bool(Any.iValue(1)), "bool of iValue");
+
+        fails(ClassCastException.class, () -> AnyDecoder.string(Any.iValue(1)), "string of iValue");
+        fails(ClassCastException.class, () -> AnyDecoder.real(null), "real of null");
+        checkEquals("d", AnyDecoder.string(Any.iValue(1), "d"), "string default");
+        checkEquals(7L, AnyDecoder.integer(Any.sValue("x"), 7), "integer default");
+
+        var array = Any.aValue(List.of(Any.iValue(1), Any.rValue(2.5)));
+        check(Arrays.equals(AnyDecoder.vector(array), new double[] { 1.0, 2.5 }), "aValue as vector");
+        checkEquals(2.5, AnyDecoder.real(AnyDecoder.get(array, 1)), "element");
+        checkEquals(null, AnyDecoder.get(array, 2), "element beyond end");
+
+        var map = Any.mValue(Map.of("a", Any.sValue("b")));
+        checkEquals("b", AnyDecoder.string(AnyDecoder.get(map, "a")), "entry");
+        checkEquals(null, AnyDecoder.get(map, "z"), "missing entry");
+        checkEquals(null, AnyDecoder.get(array, "a"), "entry of aValue");
+    }
+
+    static void as()
+    {
+        checkEquals(3, AnyDecoder.as(Any.iValue(3), int.class), "int");
+        checkEquals(1.5f, AnyDecoder.as(Any.rValue(1.5), Float.class), "Float");
+        check(Arrays.equals(AnyDecoder.as(Any.aValue(List.of(Any.iValue(4), Any.iValue(5))), long[].class), new long[] { 4, 5 }), "long[]");
+        checkEquals(LoggingLevel.Warn, AnyDecoder.as(Any.iValue(LoggingLevel.Warn.getValue()), LoggingLevel.class), "enum by value");
+        checkEquals(LoggingLevel.Critical, AnyDecoder.as(Any.sValue("Critical"), LoggingLevel.class), "enum by name");
+
+        fails(IllegalArgumentException.class, () -> AnyDecoder.as(Any.iValue(99), LoggingLevel.class), "enum of unknown value");
+        fails(ArithmeticException.class, () -> AnyDecoder.as(Any.iValue(1L << 40), int.class), "int overflow");
+        fails(IllegalArgumentException.class, () -> AnyDecoder.as(Any.iValue(1), StringBuilder.class), "unsupported type");
+    }
+}
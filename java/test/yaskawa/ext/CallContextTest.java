@@ -0,0 +1,29 @@
+package yaskawa.ext;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Nested timeouts (withTimeout() & async().call()) keep the tighter deadline, and no timeout
+ *  of their own (0) inherits the enclosing one rather than dropping it.
+ * Run by test.sh
+ */
+public class CallContextTest
+{
+    public static void main(String[] args)
+    {
+        check(CallContext.deadline(null, 0) == 0, "no deadline without timeout or enclosing context");
+
+        var outer = new CallContext(System.nanoTime() + 1000*1000000L);
+        check(CallContext.deadline(outer, 0) == outer.deadlineNanos, "timeout 0 dropped the enclosing deadline");
+        check(CallContext.deadline(outer, 5000) == outer.deadlineNanos, "longer timeout extended the enclosing deadline");
+
+        long inner = CallContext.deadline(outer, 10);
+        check(inner != outer.deadlineNanos && inner - outer.deadlineNanos < 0, "shorter timeout not applied");
+
+        long own = CallContext.deadline(new CallContext(0), 10);
+        check(own != 0 && own - System.nanoTime() <= 10*1000000L, "timeout not applied without enclosing deadline");
+
+        System.out.println("CallContextTest passed");
+    }
+}
@@ -0,0 +1,36 @@
+package yaskawa.ext;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * A call site is named after the wrapper method making the call, not the lambdas & throttle
+ *  it passes through (here the test's own methods stand in for the wrappers).
+ * Run by test.sh
+ */
+public class CallStatsTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        check(direct().equals("CallStatsTest.direct"), "direct call named "+direct());
+        check(throttled().equals("CallStatsTest.throttled"), "throttled call named "+throttled());
+        System.out.println("CallStatsTest passed");
+    }
+
+    static String direct()
+    {
+        return CallStats.callerName(Object.class);
+    }
+
+    // as Pendant.notice()
+    static String throttled() throws Exception
+    {
+        var throttle = new MessageThrottle().suppressDuplicates(Disposition.Neutral, 1000);
+        var name = new String[1];
+        throttle.send(Disposition.Neutral, "key", "message", m -> name[0] = CallStats.callerName(Object.class));
+        throttle.stop();
+        return name[0];
+    }
+}
@@ -0,0 +1,44 @@
+package yaskawa.ext;
+
+import java.util.Objects;
+
+
+/**
+ * Assertions shared by the tests - a test's main() throws AssertionError on the first failure (see test.sh).
+ *  e.g.  import static yaskawa.ext.Check.*;
+ *        check(pool.size() == 1, "pool of "+pool.size());
+ *        var e = fails(IOException.class, () -> replay(file), "damaged journal replayed");
+ */
+class Check
+{
+    @FunctionalInterface
+    interface Body
+    {
+        void run() throws Exception;
+    }
+
+    static void check(boolean condition, String message)
+    {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    static void checkEquals(Object expected, Object actual, String what)
+    {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError(what+": expected "+expected+", got "+actual);
+    }
+
+    // body must throw a type - which is returned for further checks
+    static <E extends Throwable> E fails(Class<E> type, Body body, String message)
+    {
+        try {
+            body.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t))
+                return type.cast(t);
+            throw new AssertionError(message+" - threw "+t, t);
+        }
+        throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,71 @@
+package yaskawa.ext;
+
+import java.net.ServerSocket;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * A released connection goes to the most urgent waiter, but a less urgent one passed over
+ *  maxBypass times gets the next connection rather than waiting out a steady stream of urgent calls.
+ * Run by test.sh
+ */
+public class ConnectionPoolTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        try (var server = new ServerSocket(0)) {
+            // the pool only connects, so the server needn't accept
+            var pool = new ConnectionPool("localhost", server.getLocalPort(), 1, new ConnectionOptions());
+            var conn = pool.acquire();
+            mostUrgentFirst(pool, conn);
+            bypassIsBounded(pool, conn);
+            pool.close();
+        }
+        System.out.println("ConnectionPoolTest passed");
+    }
+
+    static void mostUrgentFirst(ConnectionPool pool, Connection conn)
+    {
+        var bulk = waiter(pool, Priority.Bulk);
+        var normal = waiter(pool, Priority.Normal);
+        var interactive = waiter(pool, Priority.Interactive);
+
+        pool.release(conn);
+        check(interactive.conn == conn, "Interactive waiter not served first");
+        pool.release(conn);
+        check(normal.conn == conn, "Normal waiter not served before Bulk");
+        pool.release(conn);
+        check(bulk.conn == conn, "Bulk waiter not served");
+    }
+
+    static void bypassIsBounded(ConnectionPool pool, Connection conn)
+    {
+        var bulk = waiter(pool, Priority.Bulk);
+        for(int i = 0; i < ConnectionPool.maxBypass; i++) {
+            var interactive = waiter(pool, Priority.Interactive);
+            pool.release(conn);
+            check(interactive.conn == conn, "Interactive waiter passed over after "+i+" hand-overs");
+        }
+        check(bulk.conn == null, "Bulk waiter served early");
+
+        var interactive = waiter(pool, Priority.Interactive);
+        pool.release(conn);
+        check(bulk.conn == conn, "Bulk waiter starved");
+        pool.release(conn);
+        check(interactive.conn == conn, "Interactive waiter not served next");
+    }
+
+    // queue a waiter as take() would, without a thread blocking on it
+    static ConnectionPool.Waiter waiter(ConnectionPool pool, Priority priority)
+    {
+        var waiter = new ConnectionPool.Waiter(pool.lock.newCondition());
+        pool.lock.lock();
+        try {
+            pool.waiting.get(priority).add(waiter);
+        } finally {
+            pool.lock.unlock();
+        }
+        return waiter;
+    }
+}
@@ -0,0 +1,111 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Each item's events - of whatever type, e.g. Pressed then Released - are dispatched in order,
+ *  whichever consumers are registered, with both dispatch threads and a thread per key.
+ * Run by test.sh
+ */
+public class DispatcherTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        itemEventsStayInOrder(new Dispatcher(4, 1024, Overflow.Block, false, new PumpStats()));
+        itemEventsStayInOrder(new KeyedDispatcher(1024, new PumpStats()));
+        coalesceKeepsOrder();
+        System.out.println("DispatcherTest passed");
+    }
+
+    static void itemEventsStayInOrder(Dispatcher dispatcher) throws Exception
+    {
+        var pendant = new Pendant(null, 1);
+        var seen = new HashMap<String, List<Long>>();
+        Consumer<PendantEvent> consumer = e -> {
+            Thread.yield();
+            synchronized(seen) {
+                seen.computeIfAbsent(e.getProps().get("item").getSValue(), k -> new ArrayList<Long>())
+                    .add(e.getProps().get("seq").getIValue());
+            }
+        };
+        // directly, as adding a consumer normally subscribes with the service
+        pendant.dispatch = pendant.dispatch.with(PendantEventType.Pressed, consumer);
+
+        int n = 2000;
+        for(long i = 0; i < n; i++) {
+            var type = (i % 2 == 0) ? PendantEventType.Pressed : PendantEventType.Released;
+            // the Released consumer comes & goes, which mustn't move the item's events to another key
+            if (i == n/4)
+                pendant.dispatch = pendant.dispatch.with(PendantEventType.Released, consumer);
+            if (i == n/2)
+                pendant.dispatch = pendant.dispatch.without(PendantEventType.Released, consumer);
+            dispatcher.publish(pendant, buttonEvent(type, "button"+(i/2 % 8), i), System.nanoTime());
+        }
+        dispatcher.awaitIdle();
+        dispatcher.stop();
+
+        check(dispatcher.takeFailure() == null, "consumer failed");
+        for(var item : seen.entrySet()) {
+            var seqs = item.getValue();
+            for(int i = 1; i < seqs.size(); i++)
+                check(seqs.get(i) > seqs.get(i-1), item.getKey()+" events out of order: "+seqs+" ("+dispatcher.getClass().getSimpleName()+")");
+        }
+    }
+
+    // a full ring may replace an item's newest pending event of the same type, but not overtake
+    //  a pending event of another type for that item
+    static void coalesceKeepsOrder() throws Exception
+    {
+        var dispatcher = new Dispatcher(1, 4, Overflow.Coalesce, false, new PumpStats());
+        var pendant = new Pendant(null, 1);
+        var seen = Collections.synchronizedList(new ArrayList<Long>());
+        var release = new java.util.concurrent.CountDownLatch(1);
+        Consumer<PendantEvent> consumer = e -> {
+            try {
+                release.await();
+            } catch (InterruptedException x) {}
+            seen.add(e.getProps().get("seq").getIValue());
+        };
+        pendant.dispatch = pendant.dispatch.with(PendantEventType.Pressed, consumer).with(PendantEventType.Released, consumer);
+
+        // the first is taken by the (blocked) dispatch thread, the next 4 fill the ring
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "a", 0), System.nanoTime());
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "a", 1), System.nanoTime());
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Released, "a", 2), System.nanoTime());
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "b", 3), System.nanoTime());
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "c", 4), System.nanoTime());
+        while (dispatcher.depth() < 4)
+            Thread.yield();
+        // b's newest pending event is also Pressed - replaces it
+        dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "b", 5), System.nanoTime());
+        check(dispatcher.coalesced() == 1, "newest pending event not coalesced");
+        // a's newest pending event is Released, so Pressed would overtake it & has to wait
+        var late = new Thread(() -> {
+            try {
+                dispatcher.publish(pendant, buttonEvent(PendantEventType.Pressed, "a", 6), System.nanoTime());
+            } catch (InterruptedException x) {}
+        });
+        late.start();
+        Thread.sleep(100);
+        check(dispatcher.coalesced() == 1, "pending event coalesced out of order");
+        release.countDown();
+        late.join();
+        dispatcher.awaitIdle();
+        dispatcher.stop();
+
+        check(seen.equals(List.of(0L, 1L, 2L, 5L, 4L, 6L)), "delivered "+seen);
+    }
+
+    static PendantEvent buttonEvent(PendantEventType type, String item, long seq)
+    {
+        var e = new PendantEvent(type);
+        e.setProps(Map.of("item", Any.sValue(item), "seq", Any.iValue(seq)));
+        return e;
+    }
+}
@@ -0,0 +1,105 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * The poll interval drops to the floor while events arrive and doubles, once idle, up to the ceiling;
+ *  coalescing keeps only the last event per item of the coalesced types, in order.
+ * Run by test.sh
+ */
+public class EventPumpTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        backsOffToCeiling();
+        backsOffFromFloor();
+        coalescesPerItem();
+        System.out.println("EventPumpTest passed");
+    }
+
+    static void backsOffToCeiling()
+    {
+        var pump = new EventPump(null, 0, 200);
+        var idle = intervals(pump, 10);
+        check(idle.equals(List.of(1L, 2L, 4L, 8L, 16L, 32L, 64L, 128L, 200L, 200L)), "idle intervals "+idle);
+        pump.adapt(3);
+        check(pump.interval == 0, "interval "+pump.interval+" after events, expected the floor");
+        check(intervals(pump, 2).equals(List.of(1L, 2L)), "backoff not restarted");
+    }
+
+    static void backsOffFromFloor()
+    {
+        var pump = new EventPump(null, 5, 50);
+        check(pump.interval == 5, "initial interval "+pump.interval);
+        check(intervals(pump, 5).equals(List.of(10L, 20L, 40L, 50L, 50L)), "idle intervals from floor");
+        pump.adapt(1);
+        check(pump.interval == 5, "interval "+pump.interval+" after events, expected the floor");
+
+        // a ceiling below the floor is raised to it
+        pump = new EventPump(null, 100, 10);
+        check(intervals(pump, 2).equals(List.of(100L, 100L)), "ceiling below floor");
+    }
+
+    // interval after each of n empty polls
+    static List<Long> intervals(EventPump pump, int n)
+    {
+        var intervals = new ArrayList<Long>();
+        for(int i = 0; i < n; i++) {
+            pump.adapt(0);
+            intervals.add(pump.interval);
+        }
+        return intervals;
+    }
+
+    static void coalescesPerItem()
+    {
+        var events = List.of(event(PendantEventType.Pressed, "a", 0),
+                             event(PendantEventType.Pressed, "b", 1),
+                             event(PendantEventType.Released, "a", 2),
+                             event(PendantEventType.Pressed, "a", 3),
+                             event(PendantEventType.Released, "a", 4),
+                             event(PendantEventType.Pressed, "b", 5),
+                             event(PendantEventType.Shutdown, null, 6),
+                             event(PendantEventType.Shutdown, null, 7));
+
+        // nothing coalesced - the list as polled
+        check(coalesce(events, Set.of()) == events, "events copied when none coalesced");
+
+        // the last Pressed per item, in order of occurrence; Released untouched
+        check(seqs(coalesce(events, Set.of(PendantEventType.Pressed))).equals(List.of(2L, 3L, 4L, 5L, 6L, 7L)),
+              "coalesced Pressed: "+seqs(coalesce(events, Set.of(PendantEventType.Pressed))));
+
+        // events of no particular item coalesce by type
+        check(seqs(coalesce(events, Set.of(PendantEventType.Shutdown))).equals(List.of(0L, 1L, 2L, 3L, 4L, 5L, 7L)),
+              "coalesced Shutdown: "+seqs(coalesce(events, Set.of(PendantEventType.Shutdown))));
+    }
+
+    static List<PendantEvent> coalesce(List<PendantEvent> events, Set<PendantEventType> types)
+    {
+        return EventPump.coalesce(events, types, e -> e.getEventType(), e -> e.isSetProps() ? e.getProps() : null);
+    }
+
+    static List<Long> seqs(List<PendantEvent> events)
+    {
+        var seqs = new ArrayList<Long>();
+        for(var e : events)
+            seqs.add(e.getProps().get("seq").getIValue());
+        return seqs;
+    }
+
+    static PendantEvent event(PendantEventType type, String item, long seq)
+    {
+        var e = new PendantEvent(type);
+        var props = new HashMap<String, Any>();
+        if (item != null)
+            props.put("item", Any.sValue(item));
+        props.put("seq", Any.iValue(seq));
+        e.setProps(props);
+        return e;
+    }
+}
@@ -0,0 +1,25 @@
+package yaskawa.ext;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * libthrift's messages are kept out of the extension log (they'd be sent over the connections
+ *  they concern), while others are queued for it.
+ * Run by test.sh
+ */
+public class ExtensionLoggerFactoryTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        var factory = ExtensionLoggerFactory.instance();
+
+        factory.getLogger("org.apache.thrift.transport.TSocket").error("Could not close socket.");
+        check(factory.ring.isEmpty(), "libthrift message queued for the extension log");
+
+        factory.getLogger("com.acme.Camera").info("frame {} took {} ms", 1, 20);
+        check(!factory.ring.isEmpty(), "message not queued for the extension log");
+
+        System.out.println("ExtensionLoggerFactoryTest passed");
+    }
+}
@@ -0,0 +1,96 @@
+package yaskawa.ext;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.file.*;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Events recorded by JournalRecorder are replayed by JournalReplayer, and a damaged journal
+ *  fails with an IOException rather than reading past its end.
+ * Run by test.sh
+ */
+public class JournalTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        var file = Files.createTempFile("events", ".journal");
+        try {
+            try (var recorder = new JournalRecorder(file)) {
+                for(int i = 0; i < 3; i++)
+                    recorder.append(new PendantEvent(PendantEventType.Startup));
+            }
+            // the unused remainder of the mapped chunk is truncated (the mapping released first, as Windows requires)
+            long entries = Files.size(file) - 8;
+            check(entries > 0 && entries < JournalRecorder.CHUNK_SIZE, "journal not truncated: "+Files.size(file)+" bytes");
+
+            var replayed = new JournalReplayer(file).replay(new JournalReplayer.Sink() {}, false);
+            check(replayed == 3, "replayed "+replayed+" of 3 events");
+
+            // first entry's length (after the 8 byte header, kind & time) beyond the end of the file
+            var bytes = Files.readAllBytes(file);
+            ByteBuffer.wrap(bytes).putInt(8 + 1 + 8, 1 << 20);
+            Files.write(file, bytes);
+            checkCorrupt(file, "Corrupt");
+
+            // entry cut short after its kind
+            Files.write(file, java.util.Arrays.copyOf(bytes, 8 + 1 + 4));
+            checkCorrupt(file, "Truncated");
+        } finally {
+            Files.delete(file);
+        }
+        spansWindows();
+        System.out.println("JournalTest passed");
+    }
+
+    // a journal larger than the mapped window (the recorder's chunk), with entries crossing its
+    //  boundaries and one larger than it, is replayed in full
+    static void spansWindows() throws Exception
+    {
+        var file = Files.createTempFile("events", ".journal");
+        try {
+            int n = 40;
+            try (var recorder = new JournalRecorder(file)) {
+                for(int i = 0; i < n; i++)
+                    recorder.append(event(i, size(i, n)));
+            }
+            check(Files.size(file) > 4*JournalRecorder.CHUNK_SIZE, "journal only "+Files.size(file)+" bytes");
+
+            var seen = new java.util.ArrayList<PendantEvent>();
+            var replayed = new JournalReplayer(file).replay(new JournalReplayer.Sink() {
+                public void pendantEvent(PendantEvent e) { seen.add(e); }
+            }, false);
+            check(replayed == n, "replayed "+replayed+" of "+n+" events");
+            for(int i = 0; i < n; i++) {
+                var props = seen.get(i).getProps();
+                check(props.get("seq").getIValue() == i, "event "+i+" out of order");
+                check(props.get("text").getSValue().length() == size(i, n), "event "+i+" differs");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // text size of event i of n - the middle one larger than a window
+    static int size(int i, int n)
+    {
+        return (i == n/2) ? JournalRecorder.CHUNK_SIZE*3/2 : 100000 + i;
+    }
+
+    static PendantEvent event(int seq, int size)
+    {
+        var e = new PendantEvent(PendantEventType.Clicked);
+        e.setProps(java.util.Map.of("seq", Any.iValue(seq), "text", Any.sValue("x".repeat(size))));
+        return e;
+    }
+
+    static void checkCorrupt(Path file, String expected) throws Exception
+    {
+        var e = fails(IOException.class, () -> new JournalReplayer(file).replay(new JournalReplayer.Sink() {}, false), "damaged journal replayed");
+        check(e.getMessage().startsWith(expected), "unexpected failure "+e);
+    }
+}
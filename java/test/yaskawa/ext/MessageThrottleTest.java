@@ -0,0 +1,77 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Repeats of a message within the duplicate window are held back and then summarised, a rate limit
+ *  admits a burst and then refills, and messages of categories without limits pass unchanged.
+ * Run by test.sh
+ */
+public class MessageThrottleTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        unlimitedPassesThrough();
+        duplicatesSummarised();
+        rateLimited();
+        System.out.println("MessageThrottleTest passed");
+    }
+
+    static void unlimitedPassesThrough() throws Exception
+    {
+        var throttle = new MessageThrottle();
+        var sent = new ArrayList<String>();
+        for(int i = 0; i < 3; i++)
+            throttle.send(LoggingLevel.Info, "m", "m", sent::add);
+        checkEquals(List.of("m", "m", "m"), sent, "sent");
+        checkEquals(0L, throttle.suppressed(), "suppressed");
+    }
+
+    static void duplicatesSummarised() throws Exception
+    {
+        var throttle = new MessageThrottle().suppressDuplicates(LoggingLevel.Warn, 200);
+        var sent = Collections.synchronizedList(new ArrayList<String>());
+        for(int i = 0; i < 5; i++)
+            throttle.send(LoggingLevel.Warn, "m", "m", sent::add);
+        // the same text under another key (e.g. a notice's title) is a distinct message
+        throttle.send(LoggingLevel.Warn, "other", "m", sent::add);
+        checkEquals(List.of("m", "m"), sent, "sent within window");
+        checkEquals(4L, throttle.suppressed(), "suppressed");
+
+        // the repeats are summarised once the window has passed
+        Thread.sleep(250);
+        throttle.flush();
+        checkEquals(List.of("m", "m", MessageThrottle.summary("m", 4)), sent, "sent after window");
+
+        // messages no longer seen are forgotten, keeping their count
+        throttle.flush();
+        check(throttle.states.isEmpty(), "idle messages kept: "+throttle.states.keySet());
+        checkEquals(4L, throttle.suppressed(), "suppressed after forgetting");
+        throttle.stop();
+    }
+
+    static void rateLimited() throws Exception
+    {
+        var throttle = new MessageThrottle().rateLimit(LoggingLevel.Info, 5, 2);
+        var sent = Collections.synchronizedList(new ArrayList<String>());
+        for(int i = 0; i < 5; i++)
+            throttle.send(LoggingLevel.Info, "r", "r", sent::add);
+        checkEquals(List.of("r", "r"), sent, "sent beyond burst");
+
+        // a token has been refilled - the next is sent, counting those held back
+        Thread.sleep(250);
+        throttle.send(LoggingLevel.Info, "r", "r", sent::add);
+        checkEquals(List.of("r", "r", MessageThrottle.summary("r", 4)), sent, "sent after refill");
+        checkEquals(3L, throttle.suppressed(), "suppressed");
+
+        // other categories are unaffected
+        throttle.send(LoggingLevel.Warn, "r", "r", sent::add);
+        checkEquals(4, sent.size(), "messages sent");
+        throttle.stop();
+    }
+}
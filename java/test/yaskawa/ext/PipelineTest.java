@@ -0,0 +1,229 @@
+package yaskawa.ext;
+
+import java.net.ServerSocket;
+import java.util.*;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.TException;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.protocol.*;
+import org.apache.thrift.transport.TSocket;
+
+import static yaskawa.ext.Check.*;
+
+
+/**
+ * Pipeline against a fake service that replies with the wrong sequence ID:
+ *  the calls must fail and the connection be marked for reopening, so the unread
+ *  replies can't be taken by the next call made over it.
+ * A long pipeline of large requests & replies must complete rather than fill the socket
+ *  buffers in both directions.
+ * Run by test.sh
+ */
+public class PipelineTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        mismatchedSeqidBreaksConnection();
+        largeBurstCompletes();
+        System.out.println("PipelineTest passed");
+    }
+
+    static void mismatchedSeqidBreaksConnection() throws Exception
+    {
+        try (var server = new ServerSocket(0)) {
+            var service = new Thread(() -> serve(server, 100));
+            service.setDaemon(true);
+            service.start();
+
+            var conn = new Connection("localhost", server.getLocalPort(), new ConnectionOptions());
+            var calls = new ArrayList<Pipeline.PendingCall<?,?>>();
+            var client = new VersionClient(conn.protocol);
+            var first = new Pipeline.PendingCall<VersionClient, String>(c -> client, c -> c.sendVersion(null), c -> c.receiveVersion());
+            var second = new Pipeline.PendingCall<VersionClient, String>(c -> client, c -> c.sendVersion(null), c -> c.receiveVersion());
+            calls.add(first);
+            calls.add(second);
+
+            var e = fails(TApplicationException.class, () -> Pipeline.run(conn, calls), "mismatched reply was accepted");
+            checkEquals(TApplicationException.BAD_SEQUENCE_ID, e.getType(), "failure type");
+            check(conn.broken, "connection not marked broken");
+            check(first.result.failed() && second.result.failed(), "results not failed");
+            conn.close();
+        }
+    }
+
+    static void largeBurstCompletes() throws Exception
+    {
+        try (var server = new ServerSocket(0)) {
+            var service = new Thread(() -> serve(server, 0));
+            service.setDaemon(true);
+            service.start();
+
+            var conn = new Connection("localhost", server.getLocalPort(), new ConnectionOptions());
+            var client = new VersionClient(conn.protocol);
+            var text = "x".repeat(64*1024);
+            var calls = new ArrayList<Pipeline.PendingCall<?,?>>();
+            for(int i = 0; i < 500; i++)
+                calls.add(new Pipeline.PendingCall<VersionClient, String>(c -> client, c -> c.sendVersion(text), c -> c.receiveVersion()));
+
+            // a blocked write doesn't time out, so run it aside & abandon it if it stalls
+            var failure = new Exception[1];
+            var run = new Thread(() -> {
+                try {
+                    Pipeline.run(conn, calls);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            run.setDaemon(true);
+            run.start();
+            run.join(20000);
+            check(!run.isAlive(), "pipeline stalled with both ends writing");
+            check(failure[0] == null, "pipeline failed: "+failure[0]);
+            for(var call : calls)
+                check(text.equals(call.result.get()), "reply not received in full");
+            conn.close();
+        }
+    }
+
+    // minimal client for a "version" call returning a string, sequenced like the generated ones (see Connection)
+    static class VersionClient extends TServiceClient implements Connection.Sequenced
+    {
+        VersionClient(TProtocol protocol) { super(protocol); }
+
+        public int seqid() { return seqid_; }
+        public void expectSeqid(int seqid) { seqid_ = seqid; }
+
+        // text (if any) is echoed back in place of the version
+        void sendVersion(String text) throws TException
+        {
+            var args = new Args();
+            args.text = text;
+            sendBase("version", args);
+        }
+
+        String version(String text) throws TException
+        {
+            sendVersion(text);
+            return receiveVersion();
+        }
+
+        String receiveVersion() throws TException
+        {
+            var result = new Result();
+            receiveBase(result, "version");
+            return result.success;
+        }
+    }
+
+    // just enough of TBase for the arguments & result of the version call
+    abstract static class Struct<T extends Struct<T>> implements TBase<T, Struct.Field>
+    {
+        enum Field implements TFieldIdEnum
+        {
+            SUCCESS;
+            public short getThriftFieldId() { return 0; }
+            public String getFieldName() { return "success"; }
+        }
+
+        public Field fieldForId(int id) { return (id == 0) ? Field.SUCCESS : null; }
+        public boolean isSet(Field field) { return false; }
+        public Object getFieldValue(Field field) { return null; }
+        public void setFieldValue(Field field, Object value) {}
+        public T deepCopy() { throw new UnsupportedOperationException(); }
+        public void clear() {}
+        public int compareTo(T other) { return 0; }
+    }
+
+    static class Args extends Struct<Args>
+    {
+        public void read(TProtocol in) throws TException
+        {
+            in.readStructBegin();
+            while (true) {
+                var field = in.readFieldBegin();
+                if (field.type == TType.STOP)
+                    break;
+                if (field.id == 1 && field.type == TType.STRING)
+                    text = in.readString();
+                else
+                    TProtocolUtil.skip(in, field.type);
+                in.readFieldEnd();
+            }
+            in.readStructEnd();
+        }
+
+        public void write(TProtocol out) throws TException
+        {
+            out.writeStructBegin(new TStruct("version_args"));
+            if (text != null) {
+                out.writeFieldBegin(new TField("text", TType.STRING, (short)1));
+                out.writeString(text);
+                out.writeFieldEnd();
+            }
+            out.writeFieldStop();
+            out.writeStructEnd();
+        }
+
+        String text;
+    }
+
+    static class Result extends Struct<Result>
+    {
+        public void read(TProtocol in) throws TException
+        {
+            in.readStructBegin();
+            while (true) {
+                var field = in.readFieldBegin();
+                if (field.type == TType.STOP)
+                    break;
+                if (field.id == 0 && field.type == TType.STRING)
+                    success = in.readString();
+                else
+                    TProtocolUtil.skip(in, field.type);
+                in.readFieldEnd();
+            }
+            in.readStructEnd();
+        }
+
+        public void write(TProtocol out) throws TException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        String success;
+    }
+
+    // answer each version request (in turn, as the service does) with a reply whose seqid is off by skew
+    static void serve(ServerSocket server, int skew)
+    {
+        try (var socket = server.accept()) {
+            var protocol = new TBinaryProtocol(new TSocket(socket));
+            while (true) {
+                var request = protocol.readMessageBegin();
+                var args = new Args();
+                args.read(protocol);
+                protocol.readMessageEnd();
+                reply(protocol, new TMessage(request.name, TMessageType.REPLY, request.seqid + skew),
+                      (args.text != null) ? args.text : "2.3.0");
+            }
+        } catch (Exception e) {
+            // client closed the connection
+        }
+    }
+
+    static void reply(TProtocol protocol, TMessage message, String version) throws TException
+    {
+        protocol.writeMessageBegin(message);
+        protocol.writeStructBegin(new TStruct("version_result"));
+        protocol.writeFieldBegin(new TField("success", TType.STRING, (short)0));
+        protocol.writeString(version);
+        protocol.writeFieldEnd();
+        protocol.writeFieldStop();
+        protocol.writeStructEnd();
+        protocol.writeMessageEnd();
+        protocol.getTransport().flush();
+    }
+}
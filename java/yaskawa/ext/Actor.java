@@ -0,0 +1,276 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+
+/**
+ * Confines all API I/O for an Extension to one dedicated thread (see Extension.Builder.actor()).
+ * Other threads hand their calls to the actor through a lock-free queue and wait for the result,
+ *  so calls are executed in submission order without any locking around the connection.
+ * There is a queue per Priority, and more urgent queues are always drained first.
+ * Pipelines queued back-to-back are merged into a single pipelined burst, as are plain calls
+ *  (other than Bulk ones, whose replies may be large) - see MergedCalls.
+ * A caller waits no longer than its deadline (see Extension.withTimeout()) or the default call
+ *  timeout; if that passes while its call is still queued, the call is withdrawn.
+ */
+class Actor
+{
+    Actor(Extension ext, boolean virtual)
+    {
+        extension = ext;
+        queues = new EnumMap<Priority, ConcurrentLinkedQueue<Task>>(Priority.class);
+        for(var p : Priority.values())
+            queues.put(p, new ConcurrentLinkedQueue<Task>());
+        thread = Threads.newThread("extension-actor", this::loop, virtual);
+        thread.start();
+    }
+
+    boolean onActorThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    <T> T submit(Object site, Priority priority, Extension.Call<T> call, CallContext context) throws TException
+    {
+        var task = new CallTask<T>(site, priority, call, context);
+        enqueue(task);
+        return task.await();
+    }
+
+    void submit(Pipeline pipeline, Priority priority, CallContext context) throws TException
+    {
+        var task = new PipelineTask(pipeline, priority, context);
+        enqueue(task);
+        task.await();
+    }
+
+    void stop()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+
+    protected void enqueue(Task task) throws TException
+    {
+        if (!running)
+            throw new TTransportException(TTransportException.NOT_OPEN, "Extension closed");
+        var queue = queues.get(task.priority);
+        queue.offer(task);
+        // stopped meanwhile - the loop may already have failed what was left, before task arrived
+        if (!running && queue.remove(task))
+            throw new TTransportException(TTransportException.NOT_OPEN, "Extension closed");
+        LockSupport.unpark(thread);
+    }
+
+    protected void loop()
+    {
+        while (running) {
+            var task = next();
+            if (task == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // merge with any like tasks queued directly behind it
+            var queue = queues.get(task.priority);
+            var group = new ArrayList<Task>();
+            group.add(task);
+            Task next;
+            while ((next = queue.peek()) != null && mergeable(task, next) && queue.remove(next))
+                group.add(next);
+
+            if (group.size() == 1)
+                task.run();
+            else if (task instanceof PipelineTask)
+                runPipelines(group);
+            else
+                runCalls(group);
+        }
+
+        // anything left can't be run
+        Task task;
+        while ((task = next()) != null)
+            task.future.completeExceptionally(new TTransportException(TTransportException.NOT_OPEN, "Extension closed"));
+    }
+
+    // head of the most urgent non-empty queue
+    protected Task next()
+    {
+        for(var queue : queues.values()) {
+            var task = queue.poll();
+            if (task != null)
+                return task;
+        }
+        return null;
+    }
+
+    // tasks of a kind may share a burst unless one of them can be cancelled on its own (see Async)
+    protected static boolean mergeable(Task first, Task next)
+    {
+        if (next.getClass() != first.getClass())
+            return false;
+        if (first instanceof CallTask && first.priority == Priority.Bulk)
+            return false;
+        return first.context == next.context
+            || ((first.context == null || !first.context.abortable) && (next.context == null || !next.context.abortable));
+    }
+
+    protected void runPipelines(List<Task> group)
+    {
+        var pipelines = new ArrayList<Pipeline>(group.size());
+        for(var task : group)
+            pipelines.add(((PipelineTask)task).pipeline);
+        try {
+            var first = group.get(0);
+            extension.withContext(context(group), () -> { Pipeline.executeAll(extension, first.priority, pipelines); return null; });
+            for(var task : group)
+                task.future.complete(null);
+        } catch (Throwable t) {
+            for(var task : group)
+                task.future.completeExceptionally(t);
+        }
+    }
+
+    protected void runCalls(List<Task> group)
+    {
+        var calls = new ArrayList<Extension.Call<?>>(group.size());
+        var results = new ArrayList<CompletableFuture<Object>>(group.size());
+        for(var task : group) {
+            calls.add(((CallTask<?>)task).call);
+            results.add(task.future);
+        }
+        try {
+            var first = (CallTask<?>)group.get(0);
+            extension.withContext(context(group), () -> extension.invokeDirect(first.site, first.priority, conn -> {
+                MergedCalls.run(conn, calls, results);
+                return null;
+            }));
+        } catch (Throwable t) {
+            for(var task : group)
+                task.future.completeExceptionally(t);
+        }
+    }
+
+    // context of a burst - the tightest deadline of the group applies to all of it
+    protected static CallContext context(List<Task> group)
+    {
+        var first = group.get(0).context;
+        long deadline = 0;
+        boolean shared = true;
+        for(var task : group) {
+            shared &= (task.context == first);
+            long d = (task.context != null) ? task.context.deadlineNanos : 0;
+            if (d != 0 && (deadline == 0 || d - deadline < 0))
+                deadline = d;
+        }
+        if (shared)
+            return first;
+        return new CallContext(deadline, (first != null) ? first.priority : null);
+    }
+
+
+    abstract class Task
+    {
+        Task(Priority priority, CallContext context)
+        {
+            this.priority = priority;
+            this.context = context;
+            // as invokeDirect() will apply once the task is run
+            long deadline = (context != null) ? context.deadlineNanos : 0;
+            if (deadline == 0 && extension.config.callTimeout > 0)
+                deadline = System.nanoTime() + extension.config.callTimeout*1000000;
+            deadlineNanos = deadline;
+        }
+
+        abstract void run();
+
+        Object await() throws TException
+        {
+            try {
+                if (deadlineNanos == 0)
+                    return future.get();
+                try {
+                    return future.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // still queued - withdraw it; once running, its deadline is applied to the call itself
+                    if (queues.get(priority).remove(this))
+                        throw new TTransportException(TTransportException.TIMED_OUT, "API call timed out while queued");
+                    return future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TTransportException("Interrupted while waiting for API call");
+            } catch (ExecutionException e) {
+                var cause = e.getCause();
+                if (cause instanceof TException)
+                    throw (TException)cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                if (cause instanceof Error)
+                    throw (Error)cause;
+                throw new TException(cause);
+            }
+        }
+
+        final Priority priority;
+        final CallContext context;
+        final long deadlineNanos; // by when the caller stops waiting (0 - never)
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+    }
+
+    class CallTask<T> extends Task
+    {
+        CallTask(Object site, Priority priority, Extension.Call<T> call, CallContext context)
+        {
+            super(priority, context);
+            this.site = site;
+            this.call = call;
+        }
+
+        void run()
+        {
+            try {
+                future.complete(extension.withContext(context, () -> extension.invokeDirect(site, priority, call)));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T await() throws TException
+        {
+            return (T)super.await();
+        }
+
+        final Object site;
+        final Extension.Call<T> call;
+    }
+
+    class PipelineTask extends Task
+    {
+        PipelineTask(Pipeline pipeline, Priority priority, CallContext context)
+        {
+            super(priority, context);
+            this.pipeline = pipeline;
+        }
+
+        void run()
+        {
+            runPipelines(List.of(this));
+        }
+
+        final Pipeline pipeline;
+    }
+
+
+    protected Extension extension;
+    protected Thread thread;
+    protected EnumMap<Priority, ConcurrentLinkedQueue<Task>> queues;
+    protected volatile boolean running = true;
+}
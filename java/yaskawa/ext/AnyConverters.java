@@ -0,0 +1,200 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Conversion of Java values to Any - see Extension.toAny().
+ * The converter for each class is looked up once and cached in a ClassValue, so converting
+ *  large arrays & maps is a table lookup per element rather than a chain of instanceof tests.
+ * Supported: Boolean, Byte, Short, Integer, Long (iValue), Float, Double (rValue), String,
+ *  Position, Any (as is), double[] & float[] & List of Double (vValue), int[] & long[] & other
+ *  Lists & arrays (aValue), Maps with String keys (mValue), plus any class with a registered converter.
+ * Lists nested in a List, array or Map are always aValues (as before vValues were supported),
+ *  so only a List of Double passed directly becomes a vValue.
+ *  e.g.  AnyConverters.register(Point3.class, p -> Any.vValue(List.of(p.x, p.y, p.z)));
+ */
+public class AnyConverters
+{
+    @FunctionalInterface
+    public interface Converter<T>
+    {
+        Any toAny(T value);
+    }
+
+    /**
+     * Convert instances of type (and its subclasses & implementations, unless they have
+     *  a converter of their own) with converter, in place of any built-in conversion
+     */
+    public static synchronized <T> void register(Class<T> type, Converter<? super T> converter)
+    {
+        var updated = new LinkedHashMap<Class<?>, Converter<?>>(registered);
+        updated.put(type, converter);
+        registered = updated;
+        // classes already looked up may now resolve differently
+        converters = new Lookup();
+    }
+
+    public static Any toAny(Object o)
+    {
+        if (o == null)
+            throw new RuntimeException("Unsupported conversion to Any from null");
+        return converter(o.getClass()).toAny(o);
+    }
+
+    /** elements of list converted individually (i.e. as an aValue, even if all are Double) */
+    public static List<Any> array(List<?> list)
+    {
+        var a = new ArrayList<Any>(list.size());
+        for(var e : list)
+            a.add(element(e));
+        return a;
+    }
+
+    public static List<Any> array(Object[] array)
+    {
+        var a = new ArrayList<Any>(array.length);
+        for(var e : array)
+            a.add(element(e));
+        return a;
+    }
+
+    public static Map<String, Any> map(Map<?, ?> map)
+    {
+        // sized so the map never rehashes
+        var m = new HashMap<String, Any>(map.size() * 4 / 3 + 1);
+        for(var e : map.entrySet()) {
+            if (!(e.getKey() instanceof String))
+                throw new RuntimeException("Maps with non-String keys unsupported");
+            m.put((String)e.getKey(), element(e.getValue()));
+        }
+        return m;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    static Converter<Object> converter(Class<?> type)
+    {
+        return (Converter<Object>)converters.get(type);
+    }
+
+    static class Lookup extends ClassValue<Converter<?>>
+    {
+        protected Converter<?> computeValue(Class<?> type)
+        {
+            var registered = AnyConverters.registered;
+            var c = registered.get(type);
+            if (c != null)
+                return c;
+            c = builtIn(type);
+            if (c != null)
+                return c;
+            // most recently registered supertype
+            Converter<?> match = null;
+            for(var e : registered.entrySet())
+                if (e.getKey().isAssignableFrom(type))
+                    match = e.getValue();
+            if (match != null)
+                return match;
+            if (List.class.isAssignableFrom(type))
+                return listConverter;
+            if (Map.class.isAssignableFrom(type))
+                return (Converter<Map<?, ?>>)m -> Any.mValue(map(m));
+            if (type.isArray() && !type.getComponentType().isPrimitive())
+                return (Converter<Object[]>)a -> Any.aValue(array(a));
+            return (Converter<Object>)o -> {
+                throw new RuntimeException("Unsupported conversion to Any from "+o.getClass().getSimpleName());
+            };
+        }
+    }
+
+    protected static Converter<?> builtIn(Class<?> type)
+    {
+        if (type == Boolean.class)
+            return (Converter<Boolean>)Any::bValue;
+        if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class)
+            return (Converter<Number>)n -> Any.iValue(n.longValue());
+        if (type == Double.class || type == Float.class)
+            return (Converter<Number>)n -> Any.rValue(n.doubleValue());
+        if (type == String.class)
+            return (Converter<String>)Any::sValue;
+        if (type == Position.class)
+            return (Converter<Position>)Any::pValue;
+        if (type == Any.class)
+            return (Converter<Any>)a -> a;
+        if (type == double[].class)
+            return (Converter<double[]>)v -> Any.vValue(new DoubleArrayList(v));
+        if (type == float[].class)
+            return (Converter<float[]>)v -> Any.vValue(new FloatArrayList(v));
+        if (type == long[].class)
+            return (Converter<long[]>)AnyConverters::longs;
+        if (type == int[].class)
+            return (Converter<int[]>)AnyConverters::ints;
+        return null;
+    }
+
+    // a non-empty list of only Doubles is sent as a Vector without copying, otherwise as an array
+    @SuppressWarnings("unchecked")
+    protected static Any list(List<?> list)
+    {
+        if (list.isEmpty())
+            return Any.aValue(new ArrayList<Any>(0));
+        for(var e : list)
+            if (!(e instanceof Double))
+                return Any.aValue(array(list));
+        return Any.vValue((List<Double>)list);
+    }
+
+    // a value within a List, array or Map - nested Lists are aValues, even of only Doubles
+    protected static Any element(Object o)
+    {
+        if (o instanceof List && converters.get(o.getClass()) == listConverter)
+            return Any.aValue(array((List<?>)o));
+        return toAny(o);
+    }
+
+    protected static Any longs(long[] values)
+    {
+        var a = new ArrayList<Any>(values.length);
+        for(var v : values)
+            a.add(Any.iValue(v));
+        return Any.aValue(a);
+    }
+
+    protected static Any ints(int[] values)
+    {
+        var a = new ArrayList<Any>(values.length);
+        for(var v : values)
+            a.add(Any.iValue(v));
+        return Any.aValue(a);
+    }
+
+    // read-only List views of primitive arrays, so a vValue needn't copy them (values are boxed
+    //  only as they're serialized - the array shouldn't be modified until then)
+    static class DoubleArrayList extends AbstractList<Double> implements RandomAccess
+    {
+        DoubleArrayList(double[] values) { this.values = values; }
+
+        public Double get(int index) { return values[index]; }
+        public int size() { return values.length; }
+
+        protected final double[] values;
+    }
+
+    static class FloatArrayList extends AbstractList<Double> implements RandomAccess
+    {
+        FloatArrayList(float[] values) { this.values = values; }
+
+        public Double get(int index) { return (double)values[index]; }
+        public int size() { return values.length; }
+
+        protected final float[] values;
+    }
+
+
+    protected static final Converter<List<?>> listConverter = AnyConverters::list;
+    protected static volatile Map<Class<?>, Converter<?>> registered = Map.of();
+    protected static volatile Lookup converters = new Lookup();
+}
@@ -0,0 +1,337 @@
+package yaskawa.ext;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.apache.thrift.TEnum;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Conversion of Any back to Java values - the inverse of Extension.toAny().
+ * The typed accessors read the union directly, without building intermediate collections;
+ *  numbers convert between iValue & rValue, and a bool may also be given as an iValue.
+ * Without a default they throw ClassCastException if the Any holds another kind of value,
+ *  with one they return it for null or another kind.
+ *  e.g.  double speed = AnyDecoder.real(controller.variable("speed"), 0);
+ *        double[] limits = AnyDecoder.vector(AnyDecoder.get(pendant.property("chart", "config"), "limits"));
+ *        var cfg = AnyDecoder.as(pendant.property("panel", "config"), PanelConfig.class); // a record
+ */
+public class AnyDecoder
+{
+    /**
+     * a as a plain Java value: Boolean, Long, Double, String, double[] (vValue), Position,
+     *  List of such (aValue) or Map of String to such (mValue); null if a is null or unset
+     */
+    public static Object decode(Any a)
+    {
+        if (a == null || a.getSetField() == null)
+            return null;
+        switch (a.getSetField()) {
+            case B_VALUE: return a.getBValue();
+            case I_VALUE: return a.getIValue();
+            case R_VALUE: return a.getRValue();
+            case S_VALUE: return a.getSValue();
+            case V_VALUE: return vector(a);
+            case P_VALUE: return a.getPValue();
+            case A_VALUE: {
+                var array = a.getAValue();
+                var list = new ArrayList<Object>(array.size());
+                for(var e : array)
+                    list.add(decode(e));
+                return list;
+            }
+            case M_VALUE: {
+                var map = a.getMValue();
+                var m = new HashMap<String, Object>(map.size() * 4 / 3 + 1);
+                for(var e : map.entrySet())
+                    m.put(e.getKey(), decode(e.getValue()));
+                return m;
+            }
+            default: return null;
+        }
+    }
+
+    public static boolean bool(Any a)
+    {
+        if (a != null && a.isSetBValue())
+            return a.getBValue();
+        if (a != null && a.isSetIValue())
+            return a.getIValue() != 0;
+        throw mismatch(a, "bValue");
+    }
+
+    public static boolean bool(Any a, boolean absent)
+    {
+        if (a == null)
+            return absent;
+        if (a.isSetBValue())
+            return a.getBValue();
+        if (a.isSetIValue())
+            return a.getIValue() != 0;
+        return absent;
+    }
+
+    public static long integer(Any a)
+    {
+        if (a != null && a.isSetIValue())
+            return a.getIValue();
+        if (a != null && a.isSetRValue())
+            return (long)a.getRValue();
+        throw mismatch(a, "iValue");
+    }
+
+    public static long integer(Any a, long absent)
+    {
+        if (a == null)
+            return absent;
+        if (a.isSetIValue())
+            return a.getIValue();
+        if (a.isSetRValue())
+            return (long)a.getRValue();
+        return absent;
+    }
+
+    public static double real(Any a)
+    {
+        if (a != null && a.isSetRValue())
+            return a.getRValue();
+        if (a != null && a.isSetIValue())
+            return a.getIValue();
+        throw mismatch(a, "rValue");
+    }
+
+    public static double real(Any a, double absent)
+    {
+        if (a == null)
+            return absent;
+        if (a.isSetRValue())
+            return a.getRValue();
+        if (a.isSetIValue())
+            return a.getIValue();
+        return absent;
+    }
+
+    public static String string(Any a)
+    {
+        if (a != null && a.isSetSValue())
+            return a.getSValue();
+        throw mismatch(a, "sValue");
+    }
+
+    public static String string(Any a, String absent)
+    {
+        return (a != null && a.isSetSValue()) ? a.getSValue() : absent;
+    }
+
+    /** vValue, or an aValue of numbers, as an array */
+    public static double[] vector(Any a)
+    {
+        if (a != null && a.isSetVValue()) {
+            var v = a.getVValue();
+            var values = new double[v.size()];
+            int i = 0;
+            for(var d : v)
+                values[i++] = d;
+            return values;
+        }
+        if (a != null && a.isSetAValue()) {
+            var array = a.getAValue();
+            var values = new double[array.size()];
+            int i = 0;
+            for(var e : array)
+                values[i++] = real(e);
+            return values;
+        }
+        throw mismatch(a, "vValue");
+    }
+
+    public static double[] vector(Any a, double[] absent)
+    {
+        return (a != null && (a.isSetVValue() || a.isSetAValue())) ? vector(a) : absent;
+    }
+
+    public static Position position(Any a)
+    {
+        if (a != null && a.isSetPValue())
+            return a.getPValue();
+        throw mismatch(a, "pValue");
+    }
+
+    /** the elements of an aValue (not copied) */
+    public static List<Any> array(Any a)
+    {
+        if (a != null && a.isSetAValue())
+            return a.getAValue();
+        throw mismatch(a, "aValue");
+    }
+
+    /** the entries of an mValue (not copied) */
+    public static Map<String, Any> map(Any a)
+    {
+        if (a != null && a.isSetMValue())
+            return a.getMValue();
+        throw mismatch(a, "mValue");
+    }
+
+    /** entry key of mValue a, or null if a is not an mValue or has no such entry - for walking nested values */
+    public static Any get(Any a, String key)
+    {
+        return (a != null && a.isSetMValue()) ? a.getMValue().get(key) : null;
+    }
+
+    /** element index of aValue a, or null if a is not an aValue or too short */
+    public static Any get(Any a, int index)
+    {
+        if (a == null || !a.isSetAValue())
+            return null;
+        var array = a.getAValue();
+        return (index >= 0 && index < array.size()) ? array.get(index) : null;
+    }
+
+    /**
+     * a decoded as type: a boxed or primitive number, boolean or String, double[], long[], Position,
+     *  Any, List or Map (as decode()), a thrift enum (from its value or name), or on Java 16+ a record (from an
+     *  mValue, each component decoded from the entry of the same name as its declared type)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T as(Any a, Class<T> type)
+    {
+        return (T)decoders.get(type).apply(a);
+    }
+
+
+    protected static ClassCastException mismatch(Any a, String expected)
+    {
+        String actual = (a == null) ? "null" : (a.getSetField() == null) ? "nothing" : a.getSetField().getFieldName();
+        return new ClassCastException("Any holds "+actual+", not "+expected);
+    }
+
+    protected static final ClassValue<Function<Any, Object>> decoders = new ClassValue<Function<Any, Object>>() {
+        protected Function<Any, Object> computeValue(Class<?> type)
+        {
+            if (type == boolean.class || type == Boolean.class)
+                return a -> bool(a);
+            if (type == long.class || type == Long.class)
+                return a -> integer(a);
+            if (type == int.class || type == Integer.class)
+                return a -> Math.toIntExact(integer(a));
+            if (type == double.class || type == Double.class)
+                return a -> real(a);
+            if (type == float.class || type == Float.class)
+                return a -> (float)real(a);
+            if (type == String.class)
+                return a -> string(a);
+            if (type == double[].class)
+                return a -> vector(a);
+            if (type == long[].class)
+                return AnyDecoder::longs;
+            if (type == Position.class)
+                return a -> position(a);
+            if (type == Any.class)
+                return a -> a;
+            if (type == List.class || type == Map.class || type == Object.class)
+                return a -> type.cast(decode(a));
+            if (type.isEnum() && TEnum.class.isAssignableFrom(type))
+                return a -> enumValue(type, a);
+            if (isRecord(type))
+                return record(type);
+            throw new IllegalArgumentException("Unsupported conversion from Any to "+type.getSimpleName());
+        }
+    };
+
+    protected static long[] longs(Any a)
+    {
+        var array = array(a);
+        var values = new long[array.size()];
+        int i = 0;
+        for(var e : array)
+            values[i++] = integer(e);
+        return values;
+    }
+
+    protected static Object enumValue(Class<?> type, Any a)
+    {
+        if (a != null && a.isSetSValue()) {
+            for(var c : type.getEnumConstants())
+                if (((Enum<?>)c).name().equals(a.getSValue()))
+                    return c;
+        }
+        else {
+            int value = Math.toIntExact(integer(a));
+            for(var c : type.getEnumConstants())
+                if (((TEnum)c).getValue() == value)
+                    return c;
+        }
+        throw new IllegalArgumentException("No "+type.getSimpleName()+" for Any "+decode(a));
+    }
+
+    protected static boolean isRecord(Class<?> type)
+    {
+        try {
+            return isRecord != null && (Boolean)isRecord.invoke(type);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    protected static Function<Any, Object> record(Class<?> type)
+    {
+        var names = new String[0];
+        var types = new Class<?>[0];
+        Constructor<?> constructor;
+        try {
+            var components = (Object[])getRecordComponents.invoke(type);
+            names = new String[components.length];
+            types = new Class<?>[components.length];
+            for(int i = 0; i < components.length; i++) {
+                names[i] = (String)componentName.invoke(components[i]);
+                types[i] = (Class<?>)componentType.invoke(components[i]);
+            }
+            constructor = type.getDeclaredConstructor(types);
+            constructor.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Unsupported conversion from Any to "+type.getSimpleName(), e);
+        }
+        var componentNames = names;
+        var componentTypes = types;
+        return a -> {
+            var map = map(a);
+            var args = new Object[componentNames.length];
+            for(int i = 0; i < componentNames.length; i++) {
+                var value = map.get(componentNames[i]);
+                // a missing entry leaves a reference component null (primitives must be present)
+                args[i] = (value == null && !componentTypes[i].isPrimitive()) ? null : decoders.get(componentTypes[i]).apply(value);
+            }
+            try {
+                return constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+                throw new IllegalArgumentException("Constructing "+type.getSimpleName()+" from Any failed", e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Constructing "+type.getSimpleName()+" from Any failed", e);
+            }
+        };
+    }
+
+
+    // Class.isRecord(), Class.getRecordComponents() & the RecordComponent methods used, or null before
+    //  Java 16 - reached by reflection so the SDK still builds & runs on older JVMs (as Threads)
+    private static Method isRecord;
+    private static Method getRecordComponents;
+    private static Method componentName;
+    private static Method componentType;
+
+    static {
+        try {
+            var component = Class.forName("java.lang.reflect.RecordComponent");
+            componentName = component.getMethod("getName");
+            componentType = component.getMethod("getType");
+            getRecordComponents = Class.class.getMethod("getRecordComponents");
+            isRecord = Class.class.getMethod("isRecord");
+        } catch (ReflectiveOperationException e) {
+            isRecord = null;
+        }
+    }
+}
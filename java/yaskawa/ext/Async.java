@@ -0,0 +1,95 @@
+package yaskawa.ext;
+
+import java.util.concurrent.*;
+
+import org.apache.thrift.TException;
+
+
+/**
+ * Asynchronous facade over an API wrapper object (Extension, Controller, Pendant or Robot).
+ * Any wrapper method can be invoked asynchronously, with the result delivered via a CompletableFuture.
+ *  e.g.  controller.async().call(c -> c.variable("B000"))
+ *        robot.async().call(r -> r.jointPosition(OrientationUnit.Degree))
+ * Calls are executed on the Extension's I/O threads (one per pooled connection),
+ *  so the calling thread never blocks on the pendant.
+ */
+public class Async<W>
+{
+    Async(Extension ext, W target)
+    {
+        extension = ext;
+        this.target = target;
+    }
+
+    @FunctionalInterface
+    public interface Request<W,T>
+    {
+        T apply(W target) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Action<W>
+    {
+        void apply(W target) throws Exception;
+    }
+
+    public <T> CompletableFuture<T> call(Request<W,T> request)
+    {
+        return call(0, request);
+    }
+
+    /**
+     * As above, with a deadline (ms) for the API calls made by request - see Extension.withTimeout();
+     *  0 for none beyond that of any enclosing withTimeout().
+     * Cancelling the returned future (or completing it via orTimeout()) while the request is in progress
+     *  abandons the API call, so the connection it was using is freed for other calls.
+     */
+    public <T> CompletableFuture<T> call(long timeoutMillis, Request<W,T> request)
+    {
+        var future = new CompletableFuture<T>();
+        var outer = extension.callContext.get();
+        var context = new CallContext(CallContext.deadline(outer, timeoutMillis), outer != null ? outer.priority : null, true);
+        future.whenComplete((result, t) -> {
+            if (t instanceof CancellationException || t instanceof TimeoutException)
+                context.abort();
+        });
+        try {
+            extension.ioExecutor().execute(() -> {
+                if (future.isDone())
+                    return; // cancelled before it was run
+                try {
+                    future.complete(extension.withContext(context, () -> {
+                        try {
+                            return request.apply(target);
+                        } catch (TException | RuntimeException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }));
+                } catch (CompletionException e) {
+                    future.completeExceptionally(e.getCause());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> exec(Action<W> action)
+    {
+        return call(target -> { action.apply(target); return null; });
+    }
+
+    public CompletableFuture<Void> exec(long timeoutMillis, Action<W> action)
+    {
+        return call(timeoutMillis, target -> { action.apply(target); return null; });
+    }
+
+
+    protected Extension extension;
+    protected W target;
+}
@@ -0,0 +1,98 @@
+package yaskawa.ext;
+
+import java.net.SocketTimeoutException;
+
+import org.apache.thrift.transport.TTransportException;
+
+
+/**
+ * Per-thread state for API calls made within Extension.withTimeout()/withPriority() or by an Async call:
+ *  the deadline the calls must complete by, any overriding Priority and, so that it can be aborted,
+ *  the connection currently in use.
+ */
+class CallContext
+{
+    CallContext(long deadlineNanos)
+    {
+        this(deadlineNanos, null);
+    }
+
+    // priority null - each call's own default
+    CallContext(long deadlineNanos, Priority priority)
+    {
+        this(deadlineNanos, priority, false);
+    }
+
+    // abortable - abort() may be called (as for Async calls), so the calls can't share a connection's burst with others
+    CallContext(long deadlineNanos, Priority priority, boolean abortable)
+    {
+        this.deadlineNanos = deadlineNanos;
+        this.priority = priority;
+        this.abortable = abortable;
+    }
+
+    // deadline for calls given timeoutMillis within outer (0 - none of their own): the tighter of the two
+    static long deadline(CallContext outer, long timeoutMillis)
+    {
+        long inherited = (outer != null) ? outer.deadlineNanos : 0;
+        if (timeoutMillis <= 0)
+            return inherited;
+        long deadline = System.nanoTime() + timeoutMillis*1000000;
+        return (inherited != 0 && inherited - deadline < 0) ? inherited : deadline;
+    }
+
+    // priority the call should be scheduled with, given its default
+    static Priority priority(CallContext context, Priority defaultPriority)
+    {
+        return (context != null && context.priority != null) ? context.priority : defaultPriority;
+    }
+
+    // milliseconds left before the deadline (0 - no deadline; negative - expired)
+    long remainingMillis()
+    {
+        if (deadlineNanos == 0)
+            return 0;
+        long remaining = (deadlineNanos - System.nanoTime()) / 1000000;
+        return (remaining <= 0) ? -1 : remaining;
+    }
+
+    synchronized void attach(Connection conn) throws TTransportException
+    {
+        if (aborted)
+            throw new TTransportException(TTransportException.TIMED_OUT, "API call cancelled");
+        this.conn = conn;
+    }
+
+    synchronized void detach()
+    {
+        conn = null;
+    }
+
+    // abandon the call in progress, if any - closing its socket unblocks the waiting read
+    synchronized void abort()
+    {
+        aborted = true;
+        if (conn != null) {
+            conn.broken = true;
+            conn.socket.close();
+        }
+    }
+
+    boolean aborted()
+    {
+        return aborted;
+    }
+
+    static boolean isTimeout(TTransportException e)
+    {
+        return e.getType() == TTransportException.TIMED_OUT
+            || e.getCause() instanceof SocketTimeoutException;
+    }
+
+
+    protected final long deadlineNanos;
+    protected final Priority priority;
+    protected final boolean abortable;
+    protected Connection conn;
+    protected volatile boolean aborted = false;
+}
@@ -0,0 +1,141 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Contention statistics for API calls, per wrapper method (e.g. "Controller.jobSource"):
+ *  time spent waiting for a free connection, and time the connection was held for the call.
+ * Disabled by default; enable via Extension.callStats().enable(true), or the Builder.
+ *  e.g.  System.out.println(extension.callStats());
+ */
+public class CallStats
+{
+    public static class Entry
+    {
+        Entry(String name, Counters c)
+        {
+            this.name = name;
+            count = c.count.sum();
+            totalWaitNanos = c.totalWait.sum();
+            maxWaitNanos = c.maxWait.get();
+            totalHoldNanos = c.totalHold.sum();
+            maxHoldNanos = c.maxHold.get();
+        }
+
+        public double meanWaitMillis() { return count == 0 ? 0 : totalWaitNanos / 1e6 / count; }
+        public double meanHoldMillis() { return count == 0 ? 0 : totalHoldNanos / 1e6 / count; }
+
+        public String toString()
+        {
+            return String.format("%-40s %8d  wait avg %8.3f max %8.3f ms  hold avg %8.3f max %8.3f ms",
+                                 name, count, meanWaitMillis(), maxWaitNanos/1e6, meanHoldMillis(), maxHoldNanos/1e6);
+        }
+
+        public final String name;
+        public final long count;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+        public final long totalHoldNanos;
+        public final long maxHoldNanos;
+    }
+
+    public void enable(boolean enable) { enabled = enable; }
+    public boolean enabled() { return enabled; }
+
+    /** statistics recorded so far, most total wait time first */
+    public List<Entry> snapshot()
+    {
+        var entries = new ArrayList<Entry>();
+        for(var e : byName.entrySet())
+            entries.add(new Entry(e.getKey(), e.getValue()));
+        entries.sort((a, b) -> Long.compare(b.totalWaitNanos, a.totalWaitNanos));
+        return entries;
+    }
+
+    public void reset()
+    {
+        for(var c : byName.values())
+            c.reset();
+    }
+
+    public String toString()
+    {
+        var sb = new StringBuilder();
+        for(var e : snapshot())
+            sb.append(e).append('\n');
+        return sb.toString();
+    }
+
+
+    // site is the lambda passed to Extension.call/exec - each call site in the wrappers has its own class
+    void record(Object site, long waitNanos, long holdNanos)
+    {
+        var c = bySite.get(site.getClass());
+        c.count.increment();
+        c.totalWait.add(waitNanos);
+        c.maxWait.accumulateAndGet(waitNanos, Math::max);
+        c.totalHold.add(holdNanos);
+        c.maxHold.accumulateAndGet(holdNanos, Math::max);
+    }
+
+    // name site from the calling thread's stack, before the call is handed to another thread (see Actor)
+    void resolve(Object site)
+    {
+        bySite.get(site.getClass());
+    }
+
+    static class Counters
+    {
+        void reset()
+        {
+            count.reset();
+            totalWait.reset();
+            maxWait.set(0);
+            totalHold.reset();
+            maxHold.set(0);
+        }
+
+        final LongAdder count = new LongAdder();
+        final LongAdder totalWait = new LongAdder();
+        final AtomicLong maxWait = new AtomicLong();
+        final LongAdder totalHold = new LongAdder();
+        final AtomicLong maxHold = new AtomicLong();
+    }
+
+    // name of the wrapper method making the call - found once per call site from the calling stack
+    static String callerName(Class<?> site)
+    {
+        var frame = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).walk(frames ->
+            frames.filter(f -> {
+                var cls = f.getDeclaringClass();
+                if (cls.getPackage() != CallStats.class.getPackage() || internal.contains(cls))
+                    return false;
+                // the body of a wrapper passing the call through e.g. MessageThrottle - its wrapper follows
+                if (f.getMethodName().startsWith("lambda$"))
+                    return false;
+                if (cls == Extension.class)
+                    return !internalMethods.contains(f.getMethodName());
+                return true;
+            }).findFirst());
+        // all pipelines share one call site, whether executed by the caller or the Actor
+        return frame.map(f -> (f.getDeclaringClass() == Pipeline.class) ? "Pipeline.execute"
+                                                                        : f.getDeclaringClass().getSimpleName()+"."+f.getMethodName())
+                    .orElse(site.getName());
+    }
+
+    // classes & Extension methods that only pass calls on - never the wrapper method named
+    static final Set<Class<?>> internal = Set.of(CallStats.class, CallContext.class, MessageThrottle.class, LogWriter.class, Actor.class);
+    static final Set<String> internalMethods = Set.of("call", "exec", "invoke", "invokeDirect", "send", "withContext", "withPriority");
+
+
+    protected volatile boolean enabled = false;
+    protected final ConcurrentHashMap<String, Counters> byName = new ConcurrentHashMap<String, Counters>();
+    protected final ClassValue<Counters> bySite = new ClassValue<Counters>() {
+        protected Counters computeValue(Class<?> site) {
+            return byName.computeIfAbsent(callerName(site), n -> new Counters());
+        }
+    };
+}
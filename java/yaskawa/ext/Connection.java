@@ -0,0 +1,197 @@
+package yaskawa.ext;
+
+import java.io.*;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TFastFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+
+
+/**
+ * A single socket connection to the Extension SDK API service, carrying
+ *  the Extension, Controller, Pendant & Robot services multiplexed over one protocol.
+ * A Connection is not thread-safe; it is only used by one thread at a time
+ *  while checked-out of the owning ConnectionPool.
+ */
+class Connection
+{
+    Connection(String hostname, int port, ConnectionOptions options) throws TTransportException
+    {
+        this.hostname = hostname;
+        this.port = port;
+        this.options = options;
+        open();
+    }
+
+    // view of conn that makes its calls through protocol, layered over conn's transport (see MergedCalls)
+    Connection(Connection conn, TProtocol protocol)
+    {
+        hostname = conn.hostname;
+        port = conn.port;
+        options = conn.options;
+        socket = conn.socket;
+        timeout = conn.timeout;
+        transport = conn.transport;
+        this.protocol = protocol;
+    }
+
+    void open() throws TTransportException
+    {
+        socket = new TSocket(hostname, port);
+        socket.open();
+        transport = socket;
+
+        // TSocket buffers its streams (by 1 KB), so a larger buffer replaces rather than wraps them
+        if (options.bufferSize() > 0) {
+            try {
+                var s = socket.getSocket();
+                transport = new TIOStreamTransport(new BufferedInputStream(s.getInputStream(), options.bufferSize()),
+                                                   new BufferedOutputStream(s.getOutputStream(), options.bufferSize()));
+            } catch (IOException e) {
+                socket.close();
+                throw new TTransportException(e);
+            }
+        }
+        if (options.framing() == ConnectionOptions.Framing.Framed)
+            transport = new TFastFramedTransport(transport, ConnectionOptions.DEFAULT_FRAME_BUFFER_SIZE, options.maxFrameSize());
+
+        protocol = protocol(options, transport);
+    }
+
+    static TProtocol protocol(ConnectionOptions options, TTransport transport)
+    {
+        if (options.protocol() == ConnectionOptions.Protocol.Compact)
+            return new TCompactProtocol(transport);
+        return new TBinaryProtocol(transport);
+    }
+
+    // Service clients are created on first use, as many extensions never use the Robot service etc.
+
+    ExtensionClient extension()
+    {
+        if (extension == null)
+            extension = new ExtensionClient(new TMultiplexedProtocol(protocol, "Extension"));
+        return extension;
+    }
+
+    ControllerClient controller()
+    {
+        if (controller == null)
+            controller = new ControllerClient(new TMultiplexedProtocol(protocol, "Controller"));
+        return controller;
+    }
+
+    PendantClient pendant()
+    {
+        if (pendant == null)
+            pendant = new PendantClient(new TMultiplexedProtocol(protocol, "Pendant"));
+        return pendant;
+    }
+
+    RobotClient robot()
+    {
+        if (robot == null)
+            robot = new RobotClient(new TMultiplexedProtocol(protocol, "Robot"));
+        return robot;
+    }
+
+    // Check the service understands our transport & protocol by making a trivial call
+    void probe(int timeoutMillis) throws TException
+    {
+        socket.setTimeout(timeoutMillis);
+        try {
+            extension().apiVersion();
+        } finally {
+            socket.setTimeout(0);
+        }
+    }
+
+    void close()
+    {
+        transport.close();
+        socket.close();
+    }
+
+    // socket read timeout for subsequent calls (0 - none)
+    void setTimeout(int millis)
+    {
+        if (millis != timeout) {
+            socket.setTimeout(millis);
+            timeout = millis;
+        }
+    }
+
+    // replace a failed socket with a fresh one (clients are recreated on next use)
+    void reopen() throws TTransportException
+    {
+        close();
+        timeout = 0;
+        extension = null;
+        controller = null;
+        pendant = null;
+        robot = null;
+        open();
+        broken = false;
+    }
+
+
+    protected String hostname;
+    protected int port;
+    protected ConnectionOptions options;
+    protected TSocket socket;
+    protected int timeout = 0;
+    // set when a call was abandoned mid-way (timeout/cancel) so the stream is out of sync
+    protected volatile boolean broken = false;
+    protected TTransport transport;
+    protected TProtocol protocol;
+
+    protected ExtensionClient extension;
+    protected ControllerClient controller;
+    protected PendantClient pendant;
+    protected RobotClient robot;
+
+
+    // The generated clients check each reply against the sequence ID of the last request sent.
+    //  When requests are pipelined (see Pipeline) the expected ID must be wound back
+    //  to that of the request whose reply is being received.
+    interface Sequenced
+    {
+        int seqid();
+        void expectSeqid(int seqid);
+    }
+
+    static class ExtensionClient extends yaskawa.ext.api.Extension.Client implements Sequenced
+    {
+        ExtensionClient(TProtocol protocol) { super(protocol); }
+        public int seqid() { return seqid_; }
+        public void expectSeqid(int seqid) { seqid_ = seqid; }
+    }
+
+    static class ControllerClient extends yaskawa.ext.api.Controller.Client implements Sequenced
+    {
+        ControllerClient(TProtocol protocol) { super(protocol); }
+        public int seqid() { return seqid_; }
+        public void expectSeqid(int seqid) { seqid_ = seqid; }
+    }
+
+    static class PendantClient extends yaskawa.ext.api.Pendant.Client implements Sequenced
+    {
+        PendantClient(TProtocol protocol) { super(protocol); }
+        public int seqid() { return seqid_; }
+        public void expectSeqid(int seqid) { seqid_ = seqid; }
+    }
+
+    static class RobotClient extends yaskawa.ext.api.Robot.Client implements Sequenced
+    {
+        RobotClient(TProtocol protocol) { super(protocol); }
+        public int seqid() { return seqid_; }
+        public void expectSeqid(int seqid) { seqid_ = seqid; }
+    }
+}
@@ -0,0 +1,62 @@
+package yaskawa.ext;
+
+
+/**
+ * Transport & protocol selection for connections to the API service.
+ * The defaults (unframed, binary protocol) work with all pendant versions.
+ * The socket is always buffered, by default with libthrift's own 1 KB buffers; a larger bufferSize
+ *  lets bigger messages go in one socket write.  Framing sends each message as a single
+ *  length-prefixed frame, and the compact protocol reduces the encoded size of each message.
+ * If fallback is enabled (the default), options the service end doesn't accept
+ *  are dropped in favour of the plain unframed binary protocol.
+ */
+public class ConnectionOptions
+{
+    public enum Framing { Unframed, Framed }
+    public enum Protocol { Binary, Compact }
+
+    public static final int DEFAULT_FRAME_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384000;
+
+    public ConnectionOptions() {}
+
+    public ConnectionOptions(ConnectionOptions o)
+    {
+        framing = o.framing;
+        protocol = o.protocol;
+        bufferSize = o.bufferSize;
+        maxFrameSize = o.maxFrameSize;
+        fallback = o.fallback;
+    }
+
+    public ConnectionOptions framing(Framing f) { framing = f; return this; }
+    public ConnectionOptions protocol(Protocol p) { protocol = p; return this; }
+    /** size of the socket's read & write buffers (0 - libthrift's default) */
+    public ConnectionOptions bufferSize(int size) { bufferSize = size; return this; }
+    public ConnectionOptions maxFrameSize(int size) { maxFrameSize = size; return this; }
+    public ConnectionOptions fallback(boolean enable) { fallback = enable; return this; }
+
+    public Framing framing() { return framing; }
+    public Protocol protocol() { return protocol; }
+    public int bufferSize() { return bufferSize; }
+    public int maxFrameSize() { return maxFrameSize; }
+    public boolean fallback() { return fallback; }
+
+    // true if these are the original defaults, which any service accepts
+    boolean isDefault()
+    {
+        return framing == Framing.Unframed && protocol == Protocol.Binary;
+    }
+
+    public String toString()
+    {
+        return framing+"/"+protocol+(bufferSize > 0 ? " buffer:"+bufferSize : "");
+    }
+
+
+    protected Framing framing = Framing.Unframed;
+    protected Protocol protocol = Protocol.Binary;
+    protected int bufferSize = 0;
+    protected int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    protected boolean fallback = true;
+}
@@ -0,0 +1,269 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+
+/**
+ * Fixed-size pool of Connections to the API service.
+ * API calls check-out a free Connection for the duration of the call, so
+ *  calls from different threads may proceed concurrently over separate sockets
+ *  rather than serializing on a single one.
+ * Checking-out a connection takes the place of locking the Extension: acquire() blocks,
+ *  acquire(timeout) gives up after the timeout.
+ * A released connection is handed directly to the longest waiting call of the most urgent Priority,
+ *  so no newly arriving call can barge ahead of one already waiting.
+ * To keep a steady stream of urgent calls from starving the rest, a call that has been passed over
+ *  maxBypass times for more urgent ones gets the next connection regardless.
+ */
+class ConnectionPool
+{
+    ConnectionPool(String hostname, int port, int size, ConnectionOptions options) throws TException
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("Connection pool size must be at least 1");
+
+        connections = new ArrayList<Connection>(size);
+        idle = new ArrayDeque<Connection>(size);
+        lock = new ReentrantLock();
+        waiting = new EnumMap<Priority, ArrayDeque<Waiter>>(Priority.class);
+        for(var p : Priority.values())
+            waiting.put(p, new ArrayDeque<Waiter>());
+
+        // first connection settles which options the service accepts; the rest use the same
+        var first = negotiate(hostname, port, options);
+        this.options = first.options;
+        connections.add(first);
+        idle.add(first);
+        try {
+            for(int i = 1; i < size; i++) {
+                var conn = new Connection(hostname, port, this.options);
+                connections.add(conn);
+                idle.add(conn);
+            }
+        } catch (TTransportException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // open a connection with the requested options, falling back to more basic ones if the service rejects them
+    static Connection negotiate(String hostname, int port, ConnectionOptions options) throws TException
+    {
+        if (options.isDefault())
+            return new Connection(hostname, port, options);
+
+        var candidates = new ArrayList<ConnectionOptions>();
+        candidates.add(options);
+        if (options.fallback()) {
+            if (options.protocol() != ConnectionOptions.Protocol.Binary)
+                candidates.add(new ConnectionOptions(options).protocol(ConnectionOptions.Protocol.Binary));
+            if (options.framing() == ConnectionOptions.Framing.Framed)
+                candidates.add(new ConnectionOptions(options).protocol(ConnectionOptions.Protocol.Binary)
+                                                             .framing(ConnectionOptions.Framing.Unframed));
+        }
+
+        TException failure = null;
+        for(var candidate : candidates) {
+            Connection conn = null;
+            try {
+                conn = new Connection(hostname, port, candidate);
+                conn.probe(probeTimeout);
+                return conn;
+            } catch (TException e) {
+                if (conn != null)
+                    conn.close();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    // wait for a free connection
+    Connection acquire() throws TException
+    {
+        return acquire(Priority.Normal);
+    }
+
+    Connection acquire(Priority priority) throws TException
+    {
+        return ready(take(priority, -1));
+    }
+
+    // wait at most timeout ms for a free connection
+    Connection acquire(long timeout) throws TException
+    {
+        return acquire(Priority.Normal, timeout);
+    }
+
+    Connection acquire(Priority priority, long timeout) throws TException
+    {
+        return ready(take(priority, TimeUnit.MILLISECONDS.toNanos(timeout)));
+    }
+
+    // take an idle connection, else queue behind waiters of the same or more urgent priority (timeout -1 - none)
+    protected Connection take(Priority priority, long timeoutNanos) throws TException
+    {
+        lock.lock();
+        try {
+            // idle connections only exist while no-one is waiting (release hands over directly)
+            if (!idle.isEmpty())
+                return idle.poll();
+
+            var waiter = new Waiter(lock.newCondition());
+            waiting.get(priority).add(waiter);
+            try {
+                long nanos = timeoutNanos;
+                while (waiter.conn == null) {
+                    if (timeoutNanos < 0)
+                        waiter.handedOver.await();
+                    else {
+                        if (nanos <= 0) {
+                            waiting.get(priority).remove(waiter);
+                            throw new TTransportException(TTransportException.TIMED_OUT, "Timed out waiting for an API connection");
+                        }
+                        nanos = waiter.handedOver.awaitNanos(nanos);
+                    }
+                }
+                return waiter.conn;
+            } catch (InterruptedException e) {
+                waiting.get(priority).remove(waiter);
+                if (waiter.conn != null)
+                    handOver(waiter.conn);
+                Thread.currentThread().interrupt();
+                throw new TTransportException("Interrupted while waiting for an API connection");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // give conn to the most urgent waiter, unless a less urgent one has been passed over too often (lock held)
+    protected void handOver(Connection conn)
+    {
+        ArrayDeque<Waiter> next = null;
+        for(var queue : waiting.values()) { // EnumMap iterates in Priority order
+            var head = queue.peek();
+            if (head == null)
+                continue;
+            if (next == null)
+                next = queue;
+            else if (head.bypassed >= maxBypass) {
+                next = queue;
+                break;
+            }
+        }
+        if (next == null) {
+            idle.add(conn);
+            return;
+        }
+
+        var waiter = next.poll();
+        for(var queue : waiting.values()) {
+            var head = queue.peek();
+            if (head != null && queue != next)
+                head.bypassed++;
+        }
+        waiter.conn = conn;
+        waiter.handedOver.signal();
+    }
+
+    // a connection whose last call was abandoned can't be reused until reopened
+    protected Connection ready(Connection conn) throws TException
+    {
+        if (conn.broken) {
+            try {
+                conn.reopen();
+            } catch (TTransportException e) {
+                release(conn);
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    void release(Connection conn)
+    {
+        lock.lock();
+        try {
+            handOver(conn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // check-out every connection, waiting for calls in progress to finish
+    List<Connection> acquireAll() throws TException
+    {
+        var held = new ArrayList<Connection>(size());
+        try {
+            while (held.size() < size())
+                held.add(acquire(Priority.Interactive));
+        } catch (TException e) {
+            releaseAll(held);
+            throw e;
+        }
+        return held;
+    }
+
+    void releaseAll(List<Connection> held)
+    {
+        for(var conn : held)
+            release(conn);
+    }
+
+    // reopen all connections (caller must hold them all)
+    void reopen() throws TTransportException
+    {
+        for(var conn : connections)
+            conn.reopen();
+    }
+
+    ConnectionOptions options()
+    {
+        return options;
+    }
+
+    int size()
+    {
+        return connections.size();
+    }
+
+    List<Connection> connections()
+    {
+        return Collections.unmodifiableList(connections);
+    }
+
+    void close()
+    {
+        for(var conn : connections)
+            conn.close();
+    }
+
+
+    static class Waiter
+    {
+        Waiter(Condition handedOver)
+        {
+            this.handedOver = handedOver;
+        }
+
+        final Condition handedOver;
+        Connection conn;
+        int bypassed; // times a connection went to another waiter while this one was next in line
+    }
+
+
+    static final int probeTimeout = 3000; // ms
+    static final int maxBypass = 8;
+
+    protected ConnectionOptions options;
+    protected ArrayList<Connection> connections;
+    protected ReentrantLock lock;
+    protected ArrayDeque<Connection> idle;
+    protected EnumMap<Priority, ArrayDeque<Waiter>> waiting;
+}
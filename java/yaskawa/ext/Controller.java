@@ -3,166 +3,159 @@ package yaskawa.ext;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.*;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransportException;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.protocol.TMultiplexedProtocol;
 
 import yaskawa.ext.api.*;
 
 
 public class Controller
 {
-    Controller(Extension ext, TProtocol protocol, TMultiplexedProtocol robotProtocol, long id) throws TTransportException
+    Controller(Extension ext, long id)
     {
         extension = ext;
-        client = new yaskawa.ext.api.Controller.Client(protocol);
-        this.robotProtocol = robotProtocol;
         this.id = id;
-        eventConsumers = new HashMap<ControllerEventType, ArrayList<Consumer<yaskawa.ext.api.ControllerEvent>>>();
+        dispatch = new DispatchTable<ControllerEventType, yaskawa.ext.api.ControllerEvent>(ControllerEventType.class);
+
+        subscribedEventTypes = ConcurrentHashMap.newKeySet();
+        explicitEventTypes = ConcurrentHashMap.newKeySet();
+        coalescedEventTypes = ConcurrentHashMap.newKeySet();
+        monitoredInputs = ConcurrentHashMap.newKeySet();
+        monitoredOutputs = ConcurrentHashMap.newKeySet();
+        monitoredIOAddresses = ConcurrentHashMap.newKeySet();
+        monitoredInputGroups = new ConcurrentHashMap<Integer, Integer>();
+        monitoredOutputGroups = new ConcurrentHashMap<Integer, Integer>();
+    }
+
+
+    /** Asynchronous access to Controller API calls - see Async */
+    public Async<Controller> async()
+    {
+        return new Async<Controller>(extension, this);
     }
 
+    /** Start a batch of Controller API calls to be pipelined over one connection - see Pipeline */
+    public ControllerBatch batch()
+    {
+        return new ControllerBatch(this);
+    }
 
     public boolean requestPermissions(java.util.Set<String> permissions) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.requestPermissions(id, permissions);
-        }
+        return extension.call(conn -> conn.controller().requestPermissions(id, permissions));
     }
 
     public boolean havePermission(String permission) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.havePermission(id, permission);
-        }
+        return extension.call(conn -> conn.controller().havePermission(id, permission));
     }
 
     public void relinquishPermissions(java.util.Set<String> permissions) throws TException
     {
-        synchronized(extension) {
-            client.relinquishPermissions(id, permissions);
-        }
+        extension.exec(conn -> conn.controller().relinquishPermissions(id, permissions));
     }
 
     public void connect(String hostName) throws TException
     {
-        synchronized(extension) {
-            client.connect(id, hostName);
-        }
+        extension.exec(conn -> conn.controller().connect(id, hostName));
     }
 
     public void disconnect() throws TException
     {
-        synchronized(extension) {
-            client.disconnect(id);
-        }
+        extension.exec(conn -> conn.controller().disconnect(id));
     }
 
+    // Explicitly subscribed types stay subscribed when their last consumer is removed (see addEventConsumer()),
+    //  and types with consumers stay subscribed when explicitly unsubscribed
     public void subscribeEventTypes(Set<ControllerEventType> types) throws TException
     {
-        synchronized(extension) {
-            client.subscribeEventTypes(id, types);
-        }
+        explicitEventTypes.addAll(types);
+        syncSubscriptions();
     }
 
     public void unsubscribeEventTypes(Set<ControllerEventType> types) throws TException
     {
-        synchronized(extension) {
-            client.unsubscribeEventTypes(id, types);
-        }
+        explicitEventTypes.removeAll(types);
+        syncSubscriptions();
+    }
+
+    protected void subscribeTypes(Set<ControllerEventType> types) throws TException
+    {
+        extension.exec(conn -> conn.controller().subscribeEventTypes(id, types));
+        subscribedEventTypes.addAll(types);
+    }
+
+    protected void unsubscribeTypes(Set<ControllerEventType> types) throws TException
+    {
+        extension.exec(conn -> conn.controller().unsubscribeEventTypes(id, types));
+        subscribedEventTypes.removeAll(types);
     }
 
     public List<yaskawa.ext.api.ControllerEvent> events() throws TException
     {
-        synchronized(extension) {
-            return client.events(id);
-        }
+        return extension.call(conn -> conn.controller().events(id));
     }
 
     public boolean connected() throws TException
     {
-        synchronized(extension) {
-            return client.connected(id);
-        }
+        return extension.call(conn -> conn.controller().connected(id));
     }
 
     public String connectedHostName() throws TException
     {
-        synchronized(extension) {
-            return client.connectedHostName(id);
-        }
+        return extension.call(conn -> conn.controller().connectedHostName(id));
     }
 
     public String softwareVersion() throws TException
     {
-        synchronized(extension) {
-            return client.softwareVersion(id);
-        }
+        return extension.call(conn -> conn.controller().softwareVersion(id));
     }
 
     public boolean monitoring() throws TException
     {
-        synchronized(extension) {
-            return client.monitoring(id);
-        }
+        return extension.call(conn -> conn.controller().monitoring(id));
     }
 
     public boolean haveExclusiveControl() throws TException
     {
-        synchronized(extension) {
-            return client.haveExclusiveControl(id);
-        }
+        return extension.call(conn -> conn.controller().haveExclusiveControl(id));
     }
 
 
     public OperationMode operationMode() throws TException
     {
-        synchronized(extension) {
-            return client.operationMode(id);
-        }
+        return extension.call(conn -> conn.controller().operationMode(id));
     }
 
     public ServoState servoState() throws TException
     {
-        synchronized(extension) {
-            return client.servoState(id);
-        }
+        return extension.call(conn -> conn.controller().servoState(id));
     }
 
     public PlaybackState playbackState() throws TException
     {
-        synchronized(extension) {
-            return client.playbackState(id);
-        }
+        return extension.call(conn -> conn.controller().playbackState(id));
     }
 
     public void run() throws TException
     {
-        synchronized(extension) {
-            client.run(id);
-        }
+        extension.exec(conn -> conn.controller().run(id));
     }
 
     public void pause() throws TException
     {
-        synchronized(extension) {
-            client.pause(id);
-        }
+        extension.exec(conn -> conn.controller().pause(id));
     }
 
     public void resume() throws TException
     {
-        synchronized(extension) {
-            client.resume(id);
-        }
+        extension.exec(conn -> conn.controller().resume(id));
     }
 
     public void stop() throws TException
     {
-        synchronized(extension) {
-            client.stop(id);
-        }
+        extension.exec(conn -> conn.controller().stop(id));
     }
 
 
@@ -170,79 +163,69 @@ public class Controller
 
     public String currentJob() throws TException
     {
-        synchronized(extension) {
-            return client.currentJob(id);
-        }
+        return extension.call(conn -> conn.controller().currentJob(id));
     }
 
     public void setCurrentJob(String name, int line) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setCurrentJob(id, name, line);
-        }
+        extension.exec(conn -> conn.controller().setCurrentJob(id, name, line));
     }
 
     public String defaultJob() throws TException
     {
-        synchronized(extension) {
-            return client.defaultJob(id);
-        }
+        return extension.call(conn -> conn.controller().defaultJob(id));
     }
 
     public boolean jobExists(String name) throws TException
     {
-        synchronized(extension) {
-            return client.jobExists(id, name);
-        }
+        return extension.call(conn -> conn.controller().jobExists(id, name));
     }
 
     public RobotJobInfo jobDetails(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.jobDetails(id, name);
-        }
+        return extension.call(conn -> conn.controller().jobDetails(id, name));
     }
 
     public java.util.List<String> jobs() throws TException
     {
-        synchronized(extension) {
-            return client.jobs(id);
-        }
+        return extension.call(conn -> conn.controller().jobs(id));
     }
 
     public java.util.List<String> jobsMatching(String nameRegex, String tag) throws TException
     {
-        synchronized(extension) {
-            return client.jobsMatching(id, nameRegex, tag);
-        }
+        return extension.call(conn -> conn.controller().jobsMatching(id, nameRegex, tag));
     }
 
     public void duplicateJob(String existingName, String newName) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.duplicateJob(id, existingName, newName);
-        }
+        extension.exec(conn -> conn.controller().duplicateJob(id, existingName, newName));
     }
 
     public void deleteJob(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.deleteJob(id, name);
-        }
+        extension.exec(conn -> conn.controller().deleteJob(id, name));
     }
 
     public String jobSource(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.jobSource(id, name);
-        }
+        return extension.call(Priority.Bulk, conn -> conn.controller().jobSource(id, name));
+    }
+
+    /**
+     * Source of each of the named jobs (e.g. for export), by job name.
+     * Fetched one job per call at Bulk priority, so other threads' calls are served in between.
+     */
+    public Map<String, String> jobSources(List<String> names) throws IllegalArgument, TException
+    {
+        var sources = new LinkedHashMap<String, String>();
+        for(var name : names)
+            sources.put(name, jobSource(name));
+        return sources;
     }
 
     public void storeJobSource(String name, String programmingLanguage, String sourceCode) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.storeJobSource(id, name, programmingLanguage, sourceCode);
-        }
+        extension.exec(Priority.Bulk, conn -> conn.controller().storeJobSource(id, name, programmingLanguage, sourceCode));
     }
 
 
@@ -250,16 +233,12 @@ public class Controller
 
     public Map<Integer,String> tools() throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.tools(id);
-        }
+        return extension.call(conn -> conn.controller().tools(id));
     }
 
     public Tool tool(int index) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.tool(id, index);
-        }
+        return extension.call(conn -> conn.controller().tool(id, index));
     }
 
 
@@ -268,410 +247,306 @@ public class Controller
 
     public int inputNumber(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputNumber(id, name);
-        }
+        return extension.call(conn -> conn.controller().inputNumber(id, name));
     }
 
     public int inputGroupNumber(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputGroupNumber(id, name);
-        }
+        return extension.call(conn -> conn.controller().inputGroupNumber(id, name));
     }
 
     public int outputNumber(String name) throws IllegalArgument, TException    
     {
-        synchronized(extension) {
-            return client.outputNumber(id, name);
-        }
+        return extension.call(conn -> conn.controller().outputNumber(id, name));
     }
     
     public int outputGroupNumber(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputGroupNumber(id, name);
-        }
+        return extension.call(conn -> conn.controller().outputGroupNumber(id, name));
     }
     
     public String inputName(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputName(id, num);
-        }
+        return extension.call(conn -> conn.controller().inputName(id, num));
     }
 
     public String outputName(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputName(id, num);
-        }
+        return extension.call(conn -> conn.controller().outputName(id, num));
     }
 
     public void setInputName(int num, String name) throws TException
     {
-        synchronized(extension) {
-            client.setInputName(id, num, name);
-        }
+        extension.exec(conn -> conn.controller().setInputName(id, num, name));
     }
 
     public void setOutputName(int num, String name) throws TException
     {
-        synchronized(extension) {
-            client.setOutputName(id, num, name);
-        }
+        extension.exec(conn -> conn.controller().setOutputName(id, num, name));
     }
 
     public void monitorInput(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.monitorInput(id, num);
-        }
+        extension.exec(conn -> conn.controller().monitorInput(id, num));
+        monitoredInputs.add(num);
     }
 
     public void monitorInputGroups(int groupNum, int count) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.monitorInputGroups(id, groupNum, count);
-        }
+        extension.exec(conn -> conn.controller().monitorInputGroups(id, groupNum, count));
+        monitoredInputGroups.put(groupNum, count);
     }
 
     public void monitorOutput(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.monitorOutput(id, num);
-        }
+        extension.exec(conn -> conn.controller().monitorOutput(id, num));
+        monitoredOutputs.add(num);
     }
 
     public void monitorOutputGroups(int groupNum, int count) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.monitorOutputGroups(id, groupNum, count);
-        }
+        extension.exec(conn -> conn.controller().monitorOutputGroups(id, groupNum, count));
+        monitoredOutputGroups.put(groupNum, count);
     }
 
     public void unmonitorInput(int num) throws TException
     {
-        synchronized(extension) {
-            client.unmonitorInput(id, num);
-        }
+        extension.exec(conn -> conn.controller().unmonitorInput(id, num));
+        monitoredInputs.remove(num);
     }
 
     public void unmonitorInputGroups(int groupNum, int count) throws TException
     {
-        synchronized(extension) {
-            client.unmonitorInputGroups(id, groupNum, count);
-        }
+        extension.exec(conn -> conn.controller().unmonitorInputGroups(id, groupNum, count));
+        monitoredInputGroups.remove(groupNum);
     }
 
     public void unmonitorOutput(int num) throws TException
     {
-        synchronized(extension) {
-            client.unmonitorOutput(id, num);
-        }
+        extension.exec(conn -> conn.controller().unmonitorOutput(id, num));
+        monitoredOutputs.remove(num);
     }
 
     public void unmonitorOutputGroups(int groupNum, int count) throws TException
     {
-        synchronized(extension) {
-            client.unmonitorOutputGroups(id, groupNum, count);
-        }
+        extension.exec(conn -> conn.controller().unmonitorOutputGroups(id, groupNum, count));
+        monitoredOutputGroups.remove(groupNum);
     }
 
     public boolean inputValue(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputValue(id, num);
-        }
+        return extension.call(conn -> conn.controller().inputValue(id, num));
     }
 
     public int inputGroupsValue(int groupNum, int count) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputGroupsValue(id, groupNum, count);
-        }
+        return extension.call(conn -> conn.controller().inputGroupsValue(id, groupNum, count));
     }
 
     public boolean outputValue(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputValue(id, num);
-        }
+        return extension.call(conn -> conn.controller().outputValue(id, num));
     }
 
     public int outputGroupsValue(int groupNum, int count) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputGroupsValue(id, groupNum, count);
-        }
+        return extension.call(conn -> conn.controller().outputGroupsValue(id, groupNum, count));
     }
 
     public void setOutput(int num, boolean value) throws TException
     {
-        synchronized(extension) {
-            client.setOutput(id, num, value);
-        }
+        extension.exec(conn -> conn.controller().setOutput(id, num, value));
     }
 
     public void setOutputGroups(int groupNum, int count, int value) throws TException
     {
-        synchronized(extension) {
-            client.setOutputGroups(id, groupNum, count, value);
-        }
+        extension.exec(conn -> conn.controller().setOutputGroups(id, groupNum, count, value));
     }
 
     public int inputAddress(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputAddress(id, name);
-        }
+        return extension.call(conn -> conn.controller().inputAddress(id, name));
     }
 
     public int inputAddressByNumber(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputAddressByNumber(id, num);
-        }
+        return extension.call(conn -> conn.controller().inputAddressByNumber(id, num));
     }
 
     public int outputAddress(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputAddress(id, name);
-        }
+        return extension.call(conn -> conn.controller().outputAddress(id, name));
     }
 
     public int outputAddressByNumber(int num) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputAddressByNumber(id, num);
-        }
+        return extension.call(conn -> conn.controller().outputAddressByNumber(id, num));
     }
 
     public void monitorIOAddress(int address) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.monitorIOAddress(id, address);
-        }
+        extension.exec(conn -> conn.controller().monitorIOAddress(id, address));
+        monitoredIOAddresses.add(address);
     }
 
     public void unmonitorIOAddress(int address) throws TException
     {
-        synchronized(extension) {
-            client.unmonitorIOAddress(id, address);
-        }
+        extension.exec(conn -> conn.controller().unmonitorIOAddress(id, address));
+        monitoredIOAddresses.remove(address);
     }
 
     public boolean inputAddressValue(int address) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.inputAddressValue(id, address);
-        }
+        return extension.call(conn -> conn.controller().inputAddressValue(id, address));
     }
 
     public boolean outputAddressValue(int address) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.outputAddressValue(id, address);
-        }
+        return extension.call(conn -> conn.controller().outputAddressValue(id, address));
     }
 
     public void setOutputAddress(int address, boolean value) throws TException
     {
-        synchronized(extension) {
-            client.setOutputAddress(id, address, value);
-        }
+        extension.exec(conn -> conn.controller().setOutputAddress(id, address, value));
     }
 
     public int fieldBusStatusInputGroup(String busType) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.fieldBusStatusInputGroup(id, busType);
-        }
+        return extension.call(conn -> conn.controller().fieldBusStatusInputGroup(id, busType));
     }
 
 
 
     public java.util.List<ControlGroup> controlGroups() throws TException
     {
-        synchronized(extension) {
-            return client.controlGroups(id);
-        }
+        return extension.call(conn -> conn.controller().controlGroups(id));
     }
     public byte currentControlGroup() throws TException
     {
-        synchronized(extension) {
-            return client.currentControlGroup(id);
-        }
+        return extension.call(conn -> conn.controller().currentControlGroup(id));
     }
 
     public byte robotCount() throws TException
     {
-        synchronized(extension) {
-            return client.robotCount(id);
-        }
+        return extension.call(conn -> conn.controller().robotCount(id));
     }
 
     public int currentRobotIndex() throws TException
     {
-        synchronized(extension) {
-            return client.currentRobot(id);
-        }
+        return extension.call(conn -> conn.controller().currentRobot(id));
     }
 
     public Robot currentRobot() throws TException
     {
-        return new Robot(this, robotProtocol, currentRobotIndex());
+        return new Robot(this, currentRobotIndex());
     }
 
 
     public Any variable(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.variable(id, name);
-        }
+        return extension.call(conn -> conn.controller().variable(id, name));
     }
 
     public Any variableByAddr(VariableAddress addr) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.variableByAddr(id, addr);
-        }
+        return extension.call(conn -> conn.controller().variableByAddr(id, addr));
     }
 
     public void setVariable(String name, Any value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, value);
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, value));
     }
 
     public void setVariable(String name, boolean value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, Any.bValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, Any.bValue(value)));
     }
 
     public void setVariable(String name, long value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, Any.iValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, Any.iValue(value)));
     }
 
     public void setVariable(String name, double value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, Any.rValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, Any.rValue(value)));
     }
 
     public void setVariable(String name, String value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, Any.sValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, Any.sValue(value)));
     }
 
     public void setVariable(String name, Position value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariable(id, name, Any.pValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariable(id, name, Any.pValue(value)));
     }
 
     public void setVariableByAddr(VariableAddress addr, Any value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, value);
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, value));
     }
 
     public void setVariableByAddr(VariableAddress addr, boolean value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, Any.bValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, Any.bValue(value)));
     }
 
     public void setVariableByAddr(VariableAddress addr, long value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, Any.iValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, Any.iValue(value)));
     }
 
     public void setVariableByAddr(VariableAddress addr, double value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, Any.rValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, Any.rValue(value)));
     }
 
     public void setVariableByAddr(VariableAddress addr, String value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, Any.sValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, Any.sValue(value)));
     }
 
     public void setVariableByAddr(VariableAddress addr, Position value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableByAddr(id, addr, Any.pValue(value));
-        }
+        extension.exec(conn -> conn.controller().setVariableByAddr(id, addr, Any.pValue(value)));
     }
 
     public VariableAddress variableAddrByNameAndSpace(String name, AddressSpace space) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.variableAddrByNameAndSpace(id, name, space);
-        }
+        return extension.call(conn -> conn.controller().variableAddrByNameAndSpace(id, name, space));
     }
 
     public VariableAddress variableAddrByName(String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.variableAddrByName(id, name);
-        }
+        return extension.call(conn -> conn.controller().variableAddrByName(id, name));
     }
 
     public void setVariableName(VariableAddress addr, String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setVariableName(id, addr, name);
-        }
+        extension.exec(conn -> conn.controller().setVariableName(id, addr, name));
     }
 
 
 
     public Zone zone(int index) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.zone(id, index);
-        }
+        return extension.call(conn -> conn.controller().zone(id, index));
     }
 
     public int newZone() throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.newZone(id);
-        }
+        return extension.call(conn -> conn.controller().newZone(id));
     }
 
     public void modifyZone(int index, Zone z) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.modifyZone(id, index, z);
-        }
+        extension.exec(conn -> conn.controller().modifyZone(id, index, z));
     }
 
     public void deleteZone(int index) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.deleteZone(id, index);
-        }
+        extension.exec(conn -> conn.controller().deleteZone(id, index));
     }
 
 
@@ -679,37 +554,27 @@ public class Controller
 
     public Map<Integer,String> userFrames() throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.userFrames(id);
-        }
+        return extension.call(conn -> conn.controller().userFrames(id));
     }
 
     public CoordinateFrame userFrame(int index) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.userFrame(id, index);
-        }
+        return extension.call(conn -> conn.controller().userFrame(id, index));
     }
 
     public int newUserFrame() throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.newUserFrame(id);
-        }
+        return extension.call(conn -> conn.controller().newUserFrame(id));
     }
 
     public void setUserFrame(int index, CoordinateFrame f) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setUserFrame(id, index, f);
-        }
+        extension.exec(conn -> conn.controller().setUserFrame(id, index, f));
     }
 
     public void deleteUserFrame(int index) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.deleteUserFrame(id, index);
-        }
+        extension.exec(conn -> conn.controller().deleteUserFrame(id, index));
     }
 
 
@@ -717,37 +582,27 @@ public class Controller
 
     public String networkInterfaceAddress(String controllerInterface) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.networkInterfaceAddress(id, controllerInterface);
-        }
+        return extension.call(conn -> conn.controller().networkInterfaceAddress(id, controllerInterface));
     }
 
     public int requestNetworkAccess(String controllerInterface, int port, String protocol) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.requestNetworkAccess(id, controllerInterface, port, protocol);
-        }
+        return extension.call(conn -> conn.controller().requestNetworkAccess(id, controllerInterface, port, protocol));
     }
 
     public void removeNetworkAccess(int accessHandle) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.removeNetworkAccess(id, accessHandle);
-        }
+        extension.exec(conn -> conn.controller().removeNetworkAccess(id, accessHandle));
     }
 
     public int requestNetworkService(String controllerInterface, int port, String protocol) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.requestNetworkService(id, controllerInterface, port, protocol);
-        }
+        return extension.call(conn -> conn.controller().requestNetworkService(id, controllerInterface, port, protocol));
     }
 
     public void removeNetworkService(int serviceHandle) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.removeNetworkService(id, serviceHandle);
-        }
+        extension.exec(conn -> conn.controller().removeNetworkService(id, serviceHandle));
     }
 
 
@@ -755,33 +610,157 @@ public class Controller
 
     // Event consumer functions
 
-    public synchronized void addEventConsumer(ControllerEventType eventType, Consumer<yaskawa.ext.api.ControllerEvent> c) throws TException
+    /**
+     * If enabled, of the events of eventType received by a single poll in run(), only the latest
+     *  for each item/signal (e.g. IO address) is delivered - consumers skip stale intermediate values
+     */
+    public void coalesceEvents(ControllerEventType eventType, boolean enable)
     {
-        if (!eventConsumers.containsKey(eventType))
-            eventConsumers.put(eventType, new ArrayList<Consumer<yaskawa.ext.api.ControllerEvent>>());
-        eventConsumers.get(eventType).add(c);        
+        if (enable)
+            coalescedEventTypes.add(eventType);
+        else
+            coalescedEventTypes.remove(eventType);
+    }
 
-        subscribeEventTypes(Set.of( eventType ));
+    public void addEventConsumer(ControllerEventType eventType, Consumer<yaskawa.ext.api.ControllerEvent> c) throws TException
+    {
+        subscribe(Set.of( eventType ), c);
+    }
+
+    public void addEventConsumer(Set<ControllerEventType> eventTypes, Consumer<yaskawa.ext.api.ControllerEvent> c) throws TException
+    {
+        subscribe(eventTypes, c);
     }
-    
 
-    public synchronized void handleEvent(ControllerEvent e) {
+    /** As addEventConsumer(), returning a Registration that removes c */
+    public Registration subscribe(ControllerEventType eventType, Consumer<yaskawa.ext.api.ControllerEvent> c) throws TException
+    {
+        return subscribe(Set.of( eventType ), c);
+    }
 
-        // an event we have a consumer for?
-        if (eventConsumers.containsKey(e.getEventType())) {
-            for(Consumer<yaskawa.ext.api.ControllerEvent> consumer : eventConsumers.get(e.getEventType())) 
-                consumer.accept(e);
+    /**
+     * Register c as a consumer of all of eventTypes; those not yet subscribed are subscribed in a single call.
+     * Subscriptions are reference counted: once the last consumer of a type is removed the type
+     *  is unsubscribed (unless it was subscribed explicitly via subscribeEventTypes()).
+     */
+    public Registration subscribe(Set<ControllerEventType> eventTypes, Consumer<yaskawa.ext.api.ControllerEvent> c) throws TException
+    {
+        synchronized(this) {
+            var table = dispatch;
+            for(var eventType : eventTypes)
+                table = table.with(eventType, c);
+            dispatch = table;
         }
+        subscribeAdded(() -> removeEventConsumer(eventTypes, c));
+        return () -> removeEventConsumer(eventTypes, c);
+    }
+
+    public void removeEventConsumer(ControllerEventType eventType, Consumer<yaskawa.ext.api.ControllerEvent> c)
+    {
+        removeEventConsumer(Set.of( eventType ), c);
+    }
+
+    public void removeEventConsumer(Set<ControllerEventType> eventTypes, Consumer<yaskawa.ext.api.ControllerEvent> c)
+    {
+        synchronized(this) {
+            var table = dispatch;
+            for(var eventType : eventTypes)
+                table = table.without(eventType, c);
+            dispatch = table;
+        }
+        unsubscribeRemoved();
+    }
+
+    // after a consumer was added, subscribe its types if needed - removing it again if that fails
+    protected void subscribeAdded(Runnable remove) throws TException
+    {
+        try {
+            syncSubscriptions();
+        } catch (TException | RuntimeException e) {
+            remove.run();
+            throw e;
+        }
+    }
+
+    // after a consumer was removed, unsubscribe types no longer needed
+    //  (best effort - if it fails, the unwanted events are just ignored)
+    protected void unsubscribeRemoved()
+    {
+        try {
+            syncSubscriptions();
+        } catch (TException e) {}
+    }
+
+    // subscribe the types that have consumers or were subscribed explicitly, and unsubscribe the rest,
+    //  in a call each.  Consumers are changed under this object's lock, but the calls are made outside
+    //  it - serialized and decided from the current consumers, so they reach the service in a consistent
+    //  order however adding & removing consumers interleave
+    protected void syncSubscriptions() throws TException
+    {
+        synchronized(subscriptionLock) {
+            var table = dispatch;
+            var added = EnumSet.noneOf(ControllerEventType.class);
+            var unused = EnumSet.noneOf(ControllerEventType.class);
+            for(var type : ControllerEventType.values()) {
+                boolean wanted = !table.isEmpty(type) || explicitEventTypes.contains(type);
+                if (wanted && !subscribedEventTypes.contains(type))
+                    added.add(type);
+                else if (!wanted && subscribedEventTypes.contains(type))
+                    unused.add(type);
+            }
+            if (!added.isEmpty())
+                subscribeTypes(added);
+            if (!unused.isEmpty())
+                unsubscribeTypes(unused);
+        }
+    }
+
+    // After the Extension has reconnected to the API service, adopt the new ID and
+    //  restore event subscriptions & IO monitoring on the service side
+    void restore(Connection conn, long newID) throws TException
+    {
+        id = newID;
+        var client = conn.controller();
+        if (!subscribedEventTypes.isEmpty())
+            client.subscribeEventTypes(id, new HashSet<ControllerEventType>(subscribedEventTypes));
+        for(var num : monitoredInputs)
+            client.monitorInput(id, num);
+        for(var group : monitoredInputGroups.entrySet())
+            client.monitorInputGroups(id, group.getKey(), group.getValue());
+        for(var num : monitoredOutputs)
+            client.monitorOutput(id, num);
+        for(var group : monitoredOutputGroups.entrySet())
+            client.monitorOutputGroups(id, group.getKey(), group.getValue());
+        for(var address : monitoredIOAddresses)
+            client.monitorIOAddress(id, address);
+    }
+
+
+    public void handleEvent(ControllerEvent e) {
+
+        // no lock needed - the table is immutable & replaced as a whole when consumers change
+        for(Consumer<yaskawa.ext.api.ControllerEvent> consumer : dispatch.consumers(e.getEventType())) 
+            consumer.accept(e);
 
     }
 
 
     protected Extension extension;
-    protected yaskawa.ext.api.Controller.Client client;
-    protected long id;
-    protected TMultiplexedProtocol robotProtocol;
+    protected volatile long id;
+
+    protected volatile DispatchTable<ControllerEventType, yaskawa.ext.api.ControllerEvent> dispatch;
+
+    protected Set<ControllerEventType> coalescedEventTypes;
+    protected Set<ControllerEventType> explicitEventTypes; // subscribed via subscribeEventTypes(), rather than for a consumer
+    protected final Object subscriptionLock = new Object(); // serializes subscription changes with the service
 
-    protected HashMap<ControllerEventType, ArrayList<Consumer<yaskawa.ext.api.ControllerEvent>>> eventConsumers;
+    // service-side state to replay on reconnect
+    protected Set<ControllerEventType> subscribedEventTypes;
+    protected Set<Integer> monitoredInputs;
+    protected Set<Integer> monitoredOutputs;
+    protected Set<Integer> monitoredIOAddresses;
+    protected Map<Integer, Integer> monitoredInputGroups;
+    protected Map<Integer, Integer> monitoredOutputGroups;
 
 }
 
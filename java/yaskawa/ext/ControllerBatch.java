@@ -0,0 +1,153 @@
+package yaskawa.ext;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Pipelined batch of Controller API calls - see Pipeline.
+ *  e.g.
+ *    var batch = controller.batch();
+ *    var b0 = batch.variable("B000");
+ *    var name = batch.inputName(1);
+ *    batch.execute();
+ *    System.out.println(b0.get().getIValue()+" "+name.get());
+ */
+public class ControllerBatch extends Pipeline
+{
+    ControllerBatch(Controller c)
+    {
+        super(c.extension);
+        controller = c;
+    }
+
+    // Jobs
+
+    public Result<Boolean> jobExists(String name)
+    {
+        return add(conn -> conn.controller(), c -> c.send_jobExists(controller.id, name), c -> c.recv_jobExists());
+    }
+
+    public Result<RobotJobInfo> jobDetails(String name)
+    {
+        return add(conn -> conn.controller(), c -> c.send_jobDetails(controller.id, name), c -> c.recv_jobDetails());
+    }
+
+    // Tools & frames
+
+    public Result<Tool> tool(int index)
+    {
+        return add(conn -> conn.controller(), c -> c.send_tool(controller.id, index), c -> c.recv_tool());
+    }
+
+    public Result<CoordinateFrame> userFrame(int index)
+    {
+        return add(conn -> conn.controller(), c -> c.send_userFrame(controller.id, index), c -> c.recv_userFrame());
+    }
+
+    public Result<Zone> zone(int index)
+    {
+        return add(conn -> conn.controller(), c -> c.send_zone(controller.id, index), c -> c.recv_zone());
+    }
+
+    // IO
+
+    public Result<Integer> inputNumber(String name)
+    {
+        return add(conn -> conn.controller(), c -> c.send_inputNumber(controller.id, name), c -> c.recv_inputNumber());
+    }
+
+    public Result<Integer> outputNumber(String name)
+    {
+        return add(conn -> conn.controller(), c -> c.send_outputNumber(controller.id, name), c -> c.recv_outputNumber());
+    }
+
+    public Result<String> inputName(int num)
+    {
+        return add(conn -> conn.controller(), c -> c.send_inputName(controller.id, num), c -> c.recv_inputName());
+    }
+
+    public Result<String> outputName(int num)
+    {
+        return add(conn -> conn.controller(), c -> c.send_outputName(controller.id, num), c -> c.recv_outputName());
+    }
+
+    public Result<Void> setInputName(int num, String name)
+    {
+        return addOneway(conn -> conn.controller(), c -> c.send_setInputName(controller.id, num, name));
+    }
+
+    public Result<Void> setOutputName(int num, String name)
+    {
+        return addOneway(conn -> conn.controller(), c -> c.send_setOutputName(controller.id, num, name));
+    }
+
+    public Result<Boolean> inputValue(int num)
+    {
+        return add(conn -> conn.controller(), c -> c.send_inputValue(controller.id, num), c -> c.recv_inputValue());
+    }
+
+    public Result<Integer> inputGroupsValue(int groupNum, int count)
+    {
+        return add(conn -> conn.controller(), c -> c.send_inputGroupsValue(controller.id, groupNum, count), c -> c.recv_inputGroupsValue());
+    }
+
+    public Result<Boolean> outputValue(int num)
+    {
+        return add(conn -> conn.controller(), c -> c.send_outputValue(controller.id, num), c -> c.recv_outputValue());
+    }
+
+    public Result<Integer> outputGroupsValue(int groupNum, int count)
+    {
+        return add(conn -> conn.controller(), c -> c.send_outputGroupsValue(controller.id, groupNum, count), c -> c.recv_outputGroupsValue());
+    }
+
+    public Result<Void> setOutput(int num, boolean value)
+    {
+        return addOneway(conn -> conn.controller(), c -> c.send_setOutput(controller.id, num, value));
+    }
+
+    public Result<Void> setOutputGroups(int groupNum, int count, int value)
+    {
+        return addOneway(conn -> conn.controller(), c -> c.send_setOutputGroups(controller.id, groupNum, count, value));
+    }
+
+    public Result<Boolean> inputAddressValue(int address)
+    {
+        return add(conn -> conn.controller(), c -> c.send_inputAddressValue(controller.id, address), c -> c.recv_inputAddressValue());
+    }
+
+    public Result<Boolean> outputAddressValue(int address)
+    {
+        return add(conn -> conn.controller(), c -> c.send_outputAddressValue(controller.id, address), c -> c.recv_outputAddressValue());
+    }
+
+    public Result<Void> setOutputAddress(int address, boolean value)
+    {
+        return addOneway(conn -> conn.controller(), c -> c.send_setOutputAddress(controller.id, address, value));
+    }
+
+    // Variables
+
+    public Result<Any> variable(String name)
+    {
+        return add(conn -> conn.controller(), c -> c.send_variable(controller.id, name), c -> c.recv_variable());
+    }
+
+    public Result<Any> variableByAddr(VariableAddress addr)
+    {
+        return add(conn -> conn.controller(), c -> c.send_variableByAddr(controller.id, addr), c -> c.recv_variableByAddr());
+    }
+
+    public Result<Void> setVariable(String name, Any value)
+    {
+        return add(conn -> conn.controller(), c -> c.send_setVariable(controller.id, name, value), c -> { c.recv_setVariable(); return null; });
+    }
+
+    public Result<Void> setVariableByAddr(VariableAddress addr, Any value)
+    {
+        return add(conn -> conn.controller(), c -> c.send_setVariableByAddr(controller.id, addr, value), c -> { c.recv_setVariableByAddr(); return null; });
+    }
+
+
+    protected Controller controller; // its id is read as calls are sent, so a batch built before a reconnect uses the new one
+}
@@ -0,0 +1,119 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.function.*;
+
+
+/**
+ * Immutable table of event consumers, indexed by event type and, for item events, by item name.
+ * Controller & Pendant publish the current table through a volatile field: dispatching an event is
+ *  then a couple of lookups with no locking, while adding/removing a consumer builds a modified copy.
+ */
+class DispatchTable<T extends Enum<T>, E>
+{
+    DispatchTable(Class<T> types)
+    {
+        this.types = types;
+        byType = new EnumMap<T, List<Consumer<E>>>(types);
+        byItem = new EnumMap<T, Map<String, List<Consumer<E>>>>(types);
+    }
+
+    protected DispatchTable(DispatchTable<T, E> t)
+    {
+        types = t.types;
+        byType = new EnumMap<T, List<Consumer<E>>>(t.byType);
+        byItem = new EnumMap<T, Map<String, List<Consumer<E>>>>(t.byItem);
+    }
+
+    List<Consumer<E>> consumers(T type)
+    {
+        var c = byType.get(type);
+        return (c != null) ? c : List.of();
+    }
+
+    List<Consumer<E>> consumers(T type, String item)
+    {
+        var items = byItem.get(type);
+        var c = (items != null) ? items.get(item) : null;
+        return (c != null) ? c : List.of();
+    }
+
+    boolean hasItemConsumers(T type)
+    {
+        return byItem.containsKey(type);
+    }
+
+    // true if no consumers remain for type, of events for any item or otherwise
+    boolean isEmpty(T type)
+    {
+        return !byType.containsKey(type) && !byItem.containsKey(type);
+    }
+
+    DispatchTable<T, E> with(T type, Consumer<E> c)
+    {
+        var t = new DispatchTable<T, E>(this);
+        t.byType.put(type, added(consumers(type), c));
+        return t;
+    }
+
+    DispatchTable<T, E> without(T type, Consumer<E> c)
+    {
+        var t = new DispatchTable<T, E>(this);
+        var remaining = removed(consumers(type), c);
+        if (remaining.isEmpty())
+            t.byType.remove(type);
+        else
+            t.byType.put(type, remaining);
+        return t;
+    }
+
+    DispatchTable<T, E> with(T type, String item, Consumer<E> c)
+    {
+        var t = new DispatchTable<T, E>(this);
+        var items = new HashMap<String, List<Consumer<E>>>(byItem.getOrDefault(type, Map.of()));
+        items.put(item, added(consumers(type, item), c));
+        t.byItem.put(type, Map.copyOf(items));
+        return t;
+    }
+
+    DispatchTable<T, E> without(T type, String item, Consumer<E> c)
+    {
+        var t = new DispatchTable<T, E>(this);
+        var items = new HashMap<String, List<Consumer<E>>>(byItem.getOrDefault(type, Map.of()));
+        var remaining = removed(consumers(type, item), c);
+        if (remaining.isEmpty())
+            items.remove(item);
+        else
+            items.put(item, remaining);
+        if (items.isEmpty())
+            t.byItem.remove(type);
+        else
+            t.byItem.put(type, Map.copyOf(items));
+        return t;
+    }
+
+
+    protected static <E> List<Consumer<E>> added(List<Consumer<E>> consumers, Consumer<E> c)
+    {
+        var l = new ArrayList<Consumer<E>>(consumers);
+        l.add(c);
+        return List.copyOf(l);
+    }
+
+    // remove one registration of c (the same consumer may have been added more than once)
+    protected static <E> List<Consumer<E>> removed(List<Consumer<E>> consumers, Consumer<E> c)
+    {
+        var l = new ArrayList<Consumer<E>>(consumers);
+        for(int i = 0; i < l.size(); i++)
+            if (l.get(i) == c) {
+                l.remove(i);
+                break;
+            }
+        return List.copyOf(l);
+    }
+
+
+    protected final Class<T> types;
+    protected final EnumMap<T, List<Consumer<E>>> byType;
+    protected final EnumMap<T, Map<String, List<Consumer<E>>>> byItem;
+}
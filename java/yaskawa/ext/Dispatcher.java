@@ -0,0 +1,318 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Runs event consumers on dedicated threads, so a slow consumer doesn't hold up polling
+ *  (see Extension.Builder.dispatchThreads()).
+ * The event pump publishes each event into a preallocated ring buffer; each dispatch thread
+ *  owns one ring, and events are assigned to a ring by the item/signal they concern (or their
+ *  type, for events of no particular item), so the events for any one item - of whatever type,
+ *  e.g. Pressed then Released - are always dispatched in order.  Events for different items
+ *  may be dispatched concurrently, including to a consumer of all of a type's events.
+ */
+class Dispatcher
+{
+    Dispatcher(int threads, int capacity, Overflow overflow, boolean virtual, PumpStats stats)
+    {
+        this(overflow, stats);
+        rings = new Ring[threads];
+        int ringCapacity = Math.max(1, capacity / threads);
+        var factory = Threads.factory("extension-dispatch", virtual);
+        for(int i = 0; i < threads; i++) {
+            rings[i] = new Ring(ringCapacity);
+            var ring = rings[i];
+            ring.thread = factory.newThread(() -> ring.run());
+            ring.thread.start();
+        }
+    }
+
+    protected Dispatcher(Overflow overflow, PumpStats stats)
+    {
+        this.overflow = overflow;
+        this.stats = stats;
+    }
+
+    // received - System.nanoTime() the poll that fetched e returned, for PumpStats
+    void publish(Controller controller, ControllerEvent e, long received) throws InterruptedException
+    {
+        var type = e.getEventType();
+        var props = e.isSetProps() ? e.getProps() : null;
+        publish(controller, e, key(type, props), item(type, props), received);
+    }
+
+    void publish(Pendant pendant, PendantEvent e, long received) throws InterruptedException
+    {
+        var type = e.getEventType();
+        var props = e.isSetProps() ? e.getProps() : null;
+        publish(pendant, e, key(type, props), item(type, props), received);
+    }
+
+    // key - events with equal keys are dispatched in order, one at a time (see key())
+    // item - events with equal items may be coalesced (see item())
+    protected void publish(Object target, Object event, Object key, Object item, long received) throws InterruptedException
+    {
+        ring(key).publish(target, event, key, item, received);
+    }
+
+    // number of events waiting to be dispatched
+    int depth()
+    {
+        int depth = 0;
+        for(var ring : rings)
+            depth += ring.depth();
+        return depth;
+    }
+
+    // wait until everything published so far has been dispatched
+    void awaitIdle() throws InterruptedException
+    {
+        for(var ring : rings)
+            ring.awaitIdle();
+    }
+
+    // first exception thrown by a consumer since last checked, if any
+    Throwable takeFailure()
+    {
+        return failure.getAndSet(null);
+    }
+
+    void stop()
+    {
+        for(var ring : rings)
+            ring.stop();
+    }
+
+    long dropped() { return dropped.sum(); }
+    long coalesced() { return coalesced.sum(); }
+
+
+    // the item or signal an event concerns (its type if none), so its events are kept in order -
+    //  decided by the event alone, so it doesn't change as consumers come & go
+    static Object key(Object eventType, Map<String, Any> props)
+    {
+        if (props != null)
+            for(var name : identifyingProps) {
+                var value = props.get(name);
+                if (value != null)
+                    return value;
+            }
+        return eventType;
+    }
+
+    // an event type & the item it concerns, so events with equal items may be coalesced
+    static Object item(Object eventType, Map<String, Any> props)
+    {
+        if (props != null)
+            for(var name : identifyingProps) {
+                var value = props.get(name);
+                if (value != null)
+                    return List.of(eventType, name, value);
+            }
+        return eventType;
+    }
+
+    protected Ring ring(Object key)
+    {
+        return rings[Math.floorMod(key.hashCode(), rings.length)];
+    }
+
+    protected void dispatch(Object target, Object event, long received)
+    {
+        try {
+            if (target instanceof Controller) {
+                var e = (ControllerEvent)event;
+                ((Controller)target).handleEvent(e);
+                stats.recordConsumer(e.getEventType(), System.nanoTime() - received);
+            }
+            else {
+                var e = (PendantEvent)event;
+                ((Pendant)target).handleEvent(e);
+                stats.recordConsumer(e.getEventType(), System.nanoTime() - received);
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+
+    static class Slot
+    {
+        Object target;
+        Object event;
+        Object key;
+        Object item;
+        long received;
+    }
+
+    class Ring
+    {
+        Ring(int capacity)
+        {
+            slots = new Slot[capacity];
+            for(int i = 0; i < capacity; i++)
+                slots[i] = new Slot();
+        }
+
+        void publish(Object target, Object event, Object key, Object item, long received) throws InterruptedException
+        {
+            lock.lock();
+            try {
+                while (count == slots.length) {
+                    if (!running)
+                        return;
+                    if (overflow == Overflow.DropOldest) {
+                        clear(slots[head]);
+                        head = (head + 1) % slots.length;
+                        count--;
+                        dropped.increment();
+                        idle.signalAll();
+                    }
+                    else if (overflow == Overflow.Coalesce && replace(target, event, key, item, received)) {
+                        coalesced.increment();
+                        return;
+                    }
+                    else
+                        notFull.await();
+                }
+                var slot = slots[(head + count) % slots.length];
+                slot.target = target;
+                slot.event = event;
+                slot.key = key;
+                slot.item = item;
+                slot.received = received;
+                count++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // overwrite the newest pending event with key, if it is for the same item (lock held) - an older
+        //  one can't be, as the new event would then overtake events published since with the same key
+        protected boolean replace(Object target, Object event, Object key, Object item, long received)
+        {
+            for(int i = count - 1; i >= 0; i--) {
+                var slot = slots[(head + i) % slots.length];
+                if (slot.target == target && slot.key.equals(key)) {
+                    if (!slot.item.equals(item))
+                        return false;
+                    slot.event = event;
+                    slot.received = received;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void run()
+        {
+            Object target, event;
+            long received;
+            while (true) {
+                lock.lock();
+                try {
+                    while (count == 0 && running)
+                        notEmpty.await();
+                    if (count == 0)
+                        return;
+                    var slot = slots[head];
+                    target = slot.target;
+                    event = slot.event;
+                    received = slot.received;
+                    clear(slot);
+                    head = (head + 1) % slots.length;
+                    count--;
+                    busy = true;
+                    notFull.signal();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                dispatch(target, event, received);
+
+                lock.lock();
+                try {
+                    busy = false;
+                    if (count == 0)
+                        idle.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        int depth()
+        {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void awaitIdle() throws InterruptedException
+        {
+            lock.lock();
+            try {
+                while ((count > 0 || busy) && running)
+                    idle.await();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void stop()
+        {
+            lock.lock();
+            try {
+                running = false;
+                notEmpty.signalAll();
+                notFull.signalAll();
+                idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // release references held by a consumed slot
+        protected void clear(Slot slot)
+        {
+            slot.target = null;
+            slot.event = null;
+            slot.key = null;
+            slot.item = null;
+        }
+
+        protected final Slot[] slots;
+        protected int head = 0;
+        protected int count = 0;
+        protected boolean busy = false;
+        protected boolean running = true;
+        protected Thread thread;
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected final Condition notEmpty = lock.newCondition();
+        protected final Condition notFull = lock.newCondition();
+        protected final Condition idle = lock.newCondition();
+    }
+
+
+    // event properties that identify the item or signal an event concerns
+    static final List<String> identifyingProps = List.of("item", "identifier", "address", "name");
+
+    protected Overflow overflow;
+    protected PumpStats stats;
+    protected Ring[] rings;
+    protected final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    protected final LongAdder dropped = new LongAdder();
+    protected final LongAdder coalesced = new LongAdder();
+}
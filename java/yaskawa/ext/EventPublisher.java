@@ -0,0 +1,144 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.apache.thrift.TException;
+
+
+/**
+ * Flow.Publisher view of a stream of events - see Extension.controllerEvents() etc.
+ * Each subscriber gets its own bounded buffer and receives events on an executor thread,
+ *  only as fast as it signals demand.  An event that finds a subscriber's buffer full is dropped
+ *  for that subscriber (counted in PumpStats.subscriberDrops()) without waiting, so no queue grows
+ *  without bound and a stalled subscriber can't hold up polling or other consumers.
+ * Consumers are registered for a subscriber's event types when it subscribes, and removed as soon
+ *  as it cancels; subscriptions are completed when the Extension is closed.
+ */
+class EventPublisher<E> implements Flow.Publisher<E>
+{
+    // register sink as a consumer of the events, returning the registrations to remove on cancel
+    @FunctionalInterface
+    interface Source<E>
+    {
+        List<Registration> attach(Consumer<E> sink) throws TException;
+    }
+
+    EventPublisher(Extension ext, Source<E> source, int bufferCapacity)
+    {
+        extension = ext;
+        this.source = source;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public void subscribe(Flow.Subscriber<? super E> subscriber)
+    {
+        var publisher = new SubmissionPublisher<E>(extension.eventExecutor(), bufferCapacity);
+        var attachment = new Attachment(publisher, subscriber);
+        publisher.subscribe(attachment);
+        extension.publishers.add(publisher);
+
+        try {
+            attachment.attached(source.attach(e -> deliver(publisher, e)));
+        } catch (TException | RuntimeException e) {
+            publisher.closeExceptionally(e);
+            attachment.detach();
+        }
+    }
+
+    protected void deliver(SubmissionPublisher<E> publisher, E event)
+    {
+        if (publisher.isClosed())
+            return;
+        var stats = extension.pumpStats();
+        try {
+            publisher.offer(event, (subscriber, e) -> {
+                stats.subscriberDrops.incrementAndGet();
+                return false;
+            });
+        } catch (IllegalStateException e) {
+            // closed (by Extension.close()) since checked
+        }
+    }
+
+
+    // Stands between the publisher & the subscriber, to remove the consumer registrations
+    //  as soon as the subscriber cancels (or fails) - including before they've been made.
+    //  (Completion is only by the publisher being closed, which detach() & Extension.close() see to)
+    protected class Attachment implements Flow.Subscriber<E>
+    {
+        Attachment(SubmissionPublisher<E> publisher, Flow.Subscriber<? super E> subscriber)
+        {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) { subscription.request(n); }
+
+                public void cancel()
+                {
+                    subscription.cancel();
+                    detach();
+                }
+            });
+        }
+
+        public void onNext(E event)
+        {
+            try {
+                subscriber.onNext(event);
+            } catch (RuntimeException e) {
+                // the publisher cancels the subscription
+                detach();
+                throw e;
+            }
+        }
+
+        public void onError(Throwable t) { subscriber.onError(t); }
+        public void onComplete() { subscriber.onComplete(); }
+
+        void attached(List<Registration> attached)
+        {
+            synchronized(this) {
+                if (!detached) {
+                    registrations.addAll(attached);
+                    return;
+                }
+            }
+            // cancelled while attaching
+            for(var r : attached)
+                r.remove();
+        }
+
+        void detach()
+        {
+            List<Registration> attached;
+            synchronized(this) {
+                if (detached)
+                    return;
+                detached = true;
+                attached = new ArrayList<Registration>(registrations);
+                registrations.clear();
+            }
+            // outside the lock, as removing may unsubscribe from the service
+            for(var r : attached)
+                r.remove();
+            extension.publishers.remove(publisher);
+            publisher.close();
+        }
+
+        protected SubmissionPublisher<E> publisher;
+        protected Flow.Subscriber<? super E> subscriber;
+        protected List<Registration> registrations = new ArrayList<Registration>();
+        protected boolean detached = false;
+    }
+
+
+    protected Extension extension;
+    protected Source<E> source;
+    protected int bufferCapacity;
+}
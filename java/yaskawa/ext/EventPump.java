@@ -0,0 +1,318 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.*;
+import java.io.IOException;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Polls for Controller, Pendant & logging events and dispatches them to the registered consumers
+ *  (the body of Extension.run()).
+ * All event queues are polled in a single pipelined round trip.  While events keep arriving
+ *  the pump polls again after the floor interval (default immediately); once idle the interval
+ *  doubles with each empty poll (from the floor, or 1ms) up to the ceiling (default 200ms, the former
+ *  fixed interval) - see Extension.Builder.pollInterval().
+ * Consumers are called on the pump's thread, or by the Dispatcher if dispatch threads are configured.
+ */
+class EventPump
+{
+    EventPump(Extension ext, long floorMillis, long ceilingMillis)
+    {
+        extension = ext;
+        floor = floorMillis;
+        ceiling = Math.max(floorMillis, ceilingMillis);
+        interval = floor;
+    }
+
+    void run(BooleanSupplier stopWhen) throws TException
+    {
+        thread = Thread.currentThread();
+        try {
+            pump(stopWhen);
+        } finally {
+            // let consumers see everything already received (e.g. the Shutdown event)
+            if (extension.dispatcher != null) {
+                try {
+                    extension.dispatcher.awaitIdle();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        rethrowDispatchFailure();
+    }
+
+    protected void pump(BooleanSupplier stopWhen) throws TException
+    {
+        boolean stop = false;
+        do {
+            boolean recievedShutdownEvent = false;
+            int events = 0;
+            int coalesced = 0;
+            long pollNanos = 0;
+            long dispatchNanos = 0;
+
+            try {
+                long start = System.nanoTime();
+                var poll = poll();
+                long polled = System.nanoTime();
+                events = poll.size();
+                coalesced = poll.coalesced;
+                recievedShutdownEvent = dispatch(poll);
+                pollNanos = polled - start;
+                dispatchNanos = System.nanoTime() - polled;
+                if (poll.failure != null)
+                    throw poll.failure;
+            } catch (TTransportException e) {
+                // if the session was restored, carry on polling over the new connection
+                if (!extension.config.autoReconnect || extension.disconnected)
+                    throw e;
+            } catch (InterruptedException e) {
+                return; // while waiting for space in the dispatch buffer
+            }
+            rethrowDispatchFailure();
+
+            adapt(events);
+            int queued = (extension.dispatcher != null) ? extension.dispatcher.depth() : 0;
+            var cycle = new PumpStats.Cycle(events, coalesced, pollNanos, dispatchNanos, queued, interval);
+            stats.record(cycle);
+            for(var consumer : cycleConsumers)
+                consumer.accept(cycle);
+
+            stop = stopWhen.getAsBoolean() || recievedShutdownEvent || stopped;
+            if (!stop && interval > 0) {
+                // woken early by stop()
+                LockSupport.parkNanos(this, interval * 1000000);
+                stop = stopped || Thread.interrupted();
+            }
+
+        } while (!stop);
+    }
+
+    // end run() after the current cycle (see Extension.close())
+    void stop()
+    {
+        stopped = true;
+        var t = thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    // next interval: straight back to the floor after events, otherwise back off towards the ceiling
+    protected void adapt(int events)
+    {
+        if (events > 0)
+            interval = floor;
+        else
+            interval = Math.min(ceiling, Math.max(interval*2, Math.max(floor, 1)));
+    }
+
+
+    // Events from one poll, in the order they are dispatched
+    static class Poll
+    {
+        int size()
+        {
+            int n = 0;
+            for(var e : controllerEvents.values())
+                n += e.size();
+            for(var e : pendantEvents.values())
+                n += e.size();
+            return n + loggingEvents.size();
+        }
+
+        final Map<Controller, List<ControllerEvent>> controllerEvents = new LinkedHashMap<Controller, List<ControllerEvent>>();
+        final Map<Pendant, List<PendantEvent>> pendantEvents = new LinkedHashMap<Pendant, List<PendantEvent>>();
+        List<LoggingEvent> loggingEvents = List.of();
+        int coalesced = 0; // events superseded by a later one for the same key
+        long receivedNanos;
+        TException failure; // of the first source whose poll failed - thrown once the others' events are dispatched
+    }
+
+    // fetch the queued events of every Controller & Pendant, and any logging events, in one burst
+    protected Poll poll() throws TException
+    {
+        var burst = new Pipeline(extension);
+
+        var controllerResults = new LinkedHashMap<Controller, Pipeline.Result<List<ControllerEvent>>>();
+        for (Controller controller : extension.controllers())
+            controllerResults.put(controller, burst.add(conn -> conn.controller(), c -> c.send_events(controller.id), c -> c.recv_events()));
+
+        var pendantResults = new LinkedHashMap<Pendant, Pipeline.Result<List<PendantEvent>>>();
+        for (Pendant pendant : extension.pendants())
+            pendantResults.put(pendant, burst.add(conn -> conn.pendant(), c -> c.send_events(pendant.id), c -> c.recv_events()));
+
+        Pipeline.Result<List<LoggingEvent>> loggingResult = null;
+        if (extension.loggingConsumers.size() > 0)
+            loggingResult = burst.add(conn -> conn.extension(), c -> c.send_logEvents(extension.id), c -> c.recv_logEvents());
+
+        long sent = System.nanoTime();
+        burst.execute();
+
+        var poll = new Poll();
+        poll.receivedNanos = System.nanoTime();
+        var recorder = extension.recorder;
+        for(var r : controllerResults.entrySet()) {
+            stats.controllerPoll.record(r.getValue().completedNanos() - sent);
+            var events = events(poll, r.getValue());
+            if (recorder != null)
+                for(var e : events)
+                    record(recorder, () -> recorder.append(e));
+            var kept = coalesce(events, r.getKey().coalescedEventTypes, e -> e.getEventType(), e -> e.isSetProps() ? e.getProps() : null);
+            poll.coalesced += events.size() - kept.size();
+            poll.controllerEvents.put(r.getKey(), kept);
+        }
+        for(var r : pendantResults.entrySet()) {
+            stats.pendantPoll.record(r.getValue().completedNanos() - sent);
+            var events = events(poll, r.getValue());
+            if (recorder != null)
+                for(var e : events)
+                    record(recorder, () -> recorder.append(e));
+            var kept = coalesce(events, r.getKey().coalescedEventTypes, e -> e.getEventType(), e -> e.isSetProps() ? e.getProps() : null);
+            poll.coalesced += events.size() - kept.size();
+            poll.pendantEvents.put(r.getKey(), kept);
+        }
+        if (loggingResult != null) {
+            stats.loggingPoll.record(loggingResult.completedNanos() - sent);
+            poll.loggingEvents = events(poll, loggingResult);
+            if (recorder != null)
+                for(var e : poll.loggingEvents)
+                    record(recorder, () -> recorder.append(e));
+        }
+        return poll;
+    }
+
+    // events of one source - none if its poll failed, which is noted in poll (the events of the
+    //  other sources have already been taken from the service, so must still be dispatched)
+    protected static <E> List<E> events(Poll poll, Pipeline.Result<List<E>> result)
+    {
+        try {
+            return result.get();
+        } catch (TException e) {
+            if (poll.failure == null)
+                poll.failure = e;
+            return List.of();
+        }
+    }
+
+    @FunctionalInterface
+    interface Append
+    {
+        void append() throws IOException;
+    }
+
+    // a failing journal (e.g. disk full) stops recording, rather than event delivery
+    protected void record(JournalRecorder recorder, Append append)
+    {
+        try {
+            append.append();
+        } catch (IOException e) {
+            extension.stopRecording(recorder, e);
+        }
+    }
+
+    // drop all but the last event per item (see Dispatcher.item()) of the coalesced event types,
+    //  keeping the survivors in order of their last occurrence
+    static <E> List<E> coalesce(List<E> events, Set<?> coalescedTypes, Function<E, Object> type, Function<E, Map<String, Any>> props)
+    {
+        if (coalescedTypes.isEmpty() || events.size() < 2)
+            return events;
+
+        var seen = new HashSet<Object>();
+        var kept = new ArrayList<E>(events.size());
+        for(int i = events.size() - 1; i >= 0; i--) {
+            var e = events.get(i);
+            var t = type.apply(e);
+            if (!coalescedTypes.contains(t) || seen.add(Dispatcher.item(t, props.apply(e))))
+                kept.add(e);
+        }
+        Collections.reverse(kept);
+        return kept;
+    }
+
+    // a consumer called by a dispatch thread threw - surface it from run(), as when called inline
+    protected void rethrowDispatchFailure() throws TException
+    {
+        var t = (extension.dispatcher != null) ? extension.dispatcher.takeFailure() : null;
+        if (t instanceof TException)
+            throw (TException)t;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+    }
+
+    // hand events to consumers (or the dispatcher); true if the pendant is shutting down
+    protected boolean dispatch(Poll poll) throws TException, InterruptedException
+    {
+        boolean recievedShutdownEvent = false;
+        var dispatcher = extension.dispatcher;
+
+        for(var entry : poll.controllerEvents.entrySet()) {
+            var controller = entry.getKey();
+            for (ControllerEvent e : entry.getValue()) {
+                if (extension.outputEvents) {
+                    System.out.print("ControllerEvent:"+e.eventType);
+                    if (e.isSetProps()) {
+                        var props = e.getProps();
+                        for(var prop : props.entrySet())
+                            System.out.print("   "+prop.getKey()+":"+prop.getValue().toString());
+                    }
+                    System.out.println();
+                }
+                if (dispatcher != null)
+                    dispatcher.publish(controller, e, poll.receivedNanos);
+                else {
+                    controller.handleEvent(e);
+                    stats.recordConsumer(e.getEventType(), System.nanoTime() - poll.receivedNanos);
+                }
+            }
+        }
+
+        for(var entry : poll.pendantEvents.entrySet()) {
+            var pendant = entry.getKey();
+            for (PendantEvent e : entry.getValue()) {
+                if (extension.outputEvents) {
+                    System.out.print("PendantEvent:"+e.eventType);
+                    if (e.isSetProps()) {
+                        var props = e.getProps();
+                        for(var prop : props.entrySet())
+                            System.out.print("  "+prop.getKey()+": "+prop.getValue().toString());
+                    }
+                    System.out.println();
+                }
+                if (dispatcher != null)
+                    dispatcher.publish(pendant, e, poll.receivedNanos);
+                else {
+                    pendant.handleEvent(e);
+                    stats.recordConsumer(e.getEventType(), System.nanoTime() - poll.receivedNanos);
+                }
+
+                recievedShutdownEvent = (e.getEventType() == PendantEventType.Shutdown);
+            }
+        }
+
+        for(var event : poll.loggingEvents) {
+            for (var consumer : extension.loggingConsumers)
+                consumer.accept(event);
+        }
+
+        return recievedShutdownEvent;
+    }
+
+
+    protected Extension extension;
+    protected long floor;
+    protected long ceiling;
+    protected long interval;
+    protected volatile boolean stopped = false;
+    protected volatile Thread thread; // running run()
+    protected final PumpStats stats = new PumpStats();
+    protected final List<Consumer<PumpStats.Cycle>> cycleConsumers = new java.util.concurrent.CopyOnWriteArrayList<Consumer<PumpStats.Cycle>>();
+}
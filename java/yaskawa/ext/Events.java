@@ -0,0 +1,121 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.function.*;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Typed views of ControllerEvent & PendantEvent.
+ * A view wraps the event as received and reads a property only when its accessor is called,
+ *  without copying the props map or boxing values, e.g.
+ *    pendant.addItemEventConsumer("instructionSelect", PendantEventType.Activated,
+ *                                 Events.typed(Events.ActivatedEvent::new, e -> select(e.index())));
+ * Accessors are only provided for the properties the pendant is known to send; others can be
+ *  read by name (e.g. string("text")) or via props().
+ * Events.of() gives the most specific view for any event.
+ */
+public class Events
+{
+    /** consumer of the raw event that passes a typed view of it to c */
+    public static <E, V> Consumer<E> typed(Function<E, V> view, Consumer<V> c)
+    {
+        return e -> c.accept(view.apply(e));
+    }
+
+    public static ControllerEventView of(ControllerEvent e)
+    {
+        return new ControllerEventView(e);
+    }
+
+    public static PendantEventView of(PendantEvent e)
+    {
+        switch (e.getEventType()) {
+            case Clicked: return new ClickedEvent(e);
+            case Activated: return new ActivatedEvent(e);
+            default: return new PendantEventView(e);
+        }
+    }
+
+
+    /** Access to event properties, decoded on demand */
+    public abstract static class View
+    {
+        View(Map<String, Any> props)
+        {
+            this.props = (props != null) ? props : Map.of();
+        }
+
+        /** all properties of the event, undecoded */
+        public Map<String, Any> props() { return Collections.unmodifiableMap(props); }
+
+        public boolean has(String name) { return props.containsKey(name); }
+
+        /** undecoded property value, or null if absent */
+        public Any any(String name) { return props.get(name); }
+
+        public String string(String name) { return AnyDecoder.string(props.get(name), null); }
+        public long integer(String name, long absent) { return AnyDecoder.integer(props.get(name), absent); }
+        public double real(String name, double absent) { return AnyDecoder.real(props.get(name), absent); }
+        public boolean bool(String name, boolean absent) { return AnyDecoder.bool(props.get(name), absent); }
+
+        protected final Map<String, Any> props;
+    }
+
+
+    public static class ControllerEventView extends View
+    {
+        public ControllerEventView(ControllerEvent e)
+        {
+            super(e.isSetProps() ? e.getProps() : null);
+            event = e;
+        }
+
+        public ControllerEventType eventType() { return event.getEventType(); }
+        public ControllerEvent event() { return event; }
+
+        protected final ControllerEvent event;
+    }
+
+
+    public static class PendantEventView extends View
+    {
+        public PendantEventView(PendantEvent e)
+        {
+            super(e.isSetProps() ? e.getProps() : null);
+            event = e;
+        }
+
+        public PendantEventType eventType() { return event.getEventType(); }
+        public PendantEvent event() { return event; }
+
+        /** name of the YML item the event is from (or identifier of the integration, e.g. a jogging panel button), or null */
+        public String item()
+        {
+            var item = string("item");
+            return (item != null) ? item : string("identifier");
+        }
+
+        protected final PendantEvent event;
+    }
+
+    public static class ClickedEvent extends PendantEventView
+    {
+        public ClickedEvent(PendantEvent e) { super(e); }
+
+        /** row of a table whose delegate item was clicked, if any */
+        public OptionalLong row()
+        {
+            return has("row") ? OptionalLong.of(integer("row", -1)) : OptionalLong.empty();
+        }
+    }
+
+    public static class ActivatedEvent extends PendantEventView
+    {
+        public ActivatedEvent(PendantEvent e) { super(e); }
+
+        /** index of the activated entry (e.g. of a ComboBox), -1 if not given */
+        public long index() { return integer("index", -1); }
+    }
+}
@@ -2,16 +2,13 @@ package yaskawa.ext;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.nio.file.*;
 import java.io.*;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.protocol.TMultiplexedProtocol;
 
 import yaskawa.ext.api.*;
 
@@ -28,21 +25,159 @@ public class Extension
     public Extension(String canonicalName, Version version, String vendor, Set<String> supportedLanguages,
                      String hostname, int port) throws TTransportException, IllegalArgument, Exception
     {
-        boolean runningInPendantContainer = false;
+        this(canonicalName, version, vendor, supportedLanguages, hostname, port, 1);
+    }
 
-        // Look for launch key file in pendant container
-        //  (also an indication we're running on the pendant)
-        String launchKey = "";
-        try {
-            // If launchKey file exists, read it to get launchKey
-            //and assume we're running in a pendant container
-            String launchKeyFilePath = "/extensionService/launchKey";
-            File launchKeyFile = new File(launchKeyFilePath);
-            if (launchKeyFile.exists() && launchKeyFile.isFile()) {
-                launchKey = new String(Files.readAllBytes(Paths.get(launchKeyFilePath)));
-                runningInPendantContainer = true;
-            }
-        } catch (Exception e) {}
+    /**
+     * As above, but opens a pool of the given number of connections to the API service.
+     * Calls made concurrently from different threads are routed to a free connection,
+     *  so a slow call (e.g. jobSource()) doesn't hold up unrelated calls from other threads.
+     * All connections act on behalf of the same registered extension ID.
+     */
+    public Extension(String canonicalName, Version version, String vendor, Set<String> supportedLanguages,
+                     String hostname, int port, int connections) throws TTransportException, IllegalArgument, Exception
+    {
+        this(canonicalName, version, vendor, supportedLanguages, hostname, port, connections, new ConnectionOptions());
+    }
+
+    /**
+     * As above, additionally selecting the transport (buffered/framed) and protocol (binary/compact)
+     *  used for the connections - see ConnectionOptions.
+     */
+    public Extension(String canonicalName, Version version, String vendor, Set<String> supportedLanguages,
+                     String hostname, int port, int connections, ConnectionOptions options) throws TTransportException, IllegalArgument, Exception
+    {
+        this(builder().canonicalName(canonicalName).version(version).vendor(vendor).supportedLanguages(supportedLanguages)
+                      .hostname(hostname).port(port).connections(connections).connectionOptions(options)
+                      .prefetch(false));
+    }
+
+    /**
+     * Fluent alternative to the constructors; by default also fetches the API version and
+     *  Controller & Pendant IDs as part of startup, pipelined into a single round trip.
+     *  e.g.
+     *    var extension = Extension.builder()
+     *                        .canonicalName("com.yaskawa.yii.demoextension.ext")
+     *                        .version(new Version(1,0,0)).vendor("Yaskawa").supportedLanguages(Set.of("en"))
+     *                        .connect();
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        public Builder canonicalName(String name) { canonicalName = name; return this; }
+        public Builder version(Version v) { version = v; return this; }
+        public Builder vendor(String v) { vendor = v; return this; }
+        public Builder supportedLanguages(Set<String> languages) { supportedLanguages = languages; return this; }
+        /** hostname & port of a remote pendant; ignored when running on the pendant */
+        public Builder hostname(String name) { hostname = name; return this; }
+        public Builder port(int p) { port = p; return this; }
+        /** size of the connection pool */
+        public Builder connections(int count) { connections = count; return this; }
+        public Builder connectionOptions(ConnectionOptions options) { connectionOptions = options; return this; }
+        /** fetch API version, Controller & Pendant IDs during startup (default true) */
+        public Builder prefetch(boolean enable) { prefetch = enable; return this; }
+        /**
+         * Automatically reconnect & re-register if the connection to the API service is lost
+         *  (e.g. the service restarts), restoring event subscriptions, IO monitoring & logging subscription.
+         * Consumers registered with the Controller & Pendant objects remain in place.
+         * The call that encountered the failure still throws, but subsequent calls proceed normally.
+         */
+        public Builder autoReconnect(boolean enable) { autoReconnect = enable; return this; }
+        /** delay before first reconnect attempt, doubling on each failed attempt up to maxDelay (ms) */
+        public Builder reconnectBackoff(long initialDelay, long maxDelay) { reconnectDelay = initialDelay; maxReconnectDelay = maxDelay; return this; }
+        /** give up after this many failed attempts (0 - keep trying until closed) */
+        public Builder maxReconnectAttempts(int attempts) { maxReconnectAttempts = attempts; return this; }
+        /** default deadline for each API call in ms (0 - none); see also Extension.withTimeout() */
+        public Builder callTimeout(long millis) { callTimeout = millis; return this; }
+        /** record connection wait & hold times per API method - see Extension.callStats() */
+        public Builder callStats(boolean enable) { callStats = enable; return this; }
+        /**
+         * Confine all API I/O to a single dedicated thread over a single connection.
+         * Calls from any thread are queued to it without locking, executed in order,
+         *  and pipelines queued together are sent as one burst - see Actor.
+         */
+        public Builder actor(boolean enable) { actor = enable; return this; }
+        /**
+         * Bounds on the interval between event polls in run() (ms): while events keep arriving
+         *  the next poll follows after floor; when idle the interval doubles with each empty poll,
+         *  from floor (or 1) up to ceiling (default 0, 200 - the interval run() always used to wait)
+         */
+        public Builder pollInterval(long floor, long ceiling) { pollFloor = floor; pollCeiling = ceiling; return this; }
+        /**
+         * Call event consumers from this many dedicated threads instead of the run() thread, so a slow
+         *  consumer doesn't delay polling (default 0 - inline).  Events for the same item or signal
+         *  are always delivered in order.
+         */
+        public Builder dispatchThreads(int count) { dispatchThreads = count; return this; }
+        /** capacity of the buffer between polling & dispatch threads, and what to do when it fills (default 1024, Block) */
+        public Builder dispatchBuffer(int capacity, Overflow policy) { dispatchCapacity = capacity; overflow = policy; return this; }
+        /** use virtual threads (where the JVM supports them) for SDK-created threads */
+        public Builder virtualThreads(boolean enable) { virtualThreads = enable; return this; }
+        /**
+         * Run each event consumer invocation, Async call and publisher delivery on a thread of its own -
+         *  a virtual thread where the JVM supports them, otherwise a pooled platform thread.
+         * Consumers may then block (e.g. in API calls) without holding up polling or each other; events
+         *  for the same item or signal are still delivered in order.  Overrides dispatchThreads().
+         */
+        public Builder virtualThreadPerTask(boolean enable) { virtualThreadPerTask = enable; return this; }
+        /**
+         * Queue log() messages for a background writer, which sends them in batches, instead of sending
+         *  each from the caller's thread - see LogWriter (default false)
+         */
+        public Builder asyncLogging(boolean enable) { asyncLogging = enable; return this; }
+        /** with asyncLogging, send once this many messages are queued or flushMillis after the first (default 64, 50ms) */
+        public Builder logBatch(int size, long flushMillis) { logBatchSize = size; logFlushMillis = flushMillis; return this; }
+        /** discard log() messages below this level without any API call (default Debug - log everything) */
+        public Builder logLevel(LoggingLevel level) { logLevel = level; return this; }
+
+        public Extension connect() throws TTransportException, IllegalArgument, Exception
+        {
+            if (canonicalName == null || version == null)
+                throw new IllegalStateException("Extension canonicalName and version are required");
+            return new Extension(this);
+        }
+
+        protected String canonicalName;
+        protected Version version;
+        protected String vendor = "";
+        protected Set<String> supportedLanguages = Set.of("en");
+        protected String hostname = "";
+        protected int port = -1;
+        protected int connections = 1;
+        protected ConnectionOptions connectionOptions = new ConnectionOptions();
+        protected boolean prefetch = true;
+        protected boolean autoReconnect = false;
+        protected long reconnectDelay = 250;
+        protected long maxReconnectDelay = 10000;
+        protected int maxReconnectAttempts = 0;
+        protected long callTimeout = 0;
+        protected boolean callStats = false;
+        protected boolean actor = false;
+        protected long pollFloor = 0;
+        protected long pollCeiling = 200;
+        protected int dispatchThreads = 0;
+        protected int dispatchCapacity = 1024;
+        protected Overflow overflow = Overflow.Block;
+        protected boolean virtualThreads = false;
+        protected boolean virtualThreadPerTask = false;
+        protected boolean asyncLogging = false;
+        protected int logBatchSize = 64;
+        protected long logFlushMillis = 50;
+        protected LoggingLevel logLevel = LoggingLevel.Debug;
+    }
+
+    protected Extension(Builder b) throws TTransportException, IllegalArgument, Exception
+    {
+        config = b;
+        String hostname = b.hostname;
+        int port = b.port;
+
+        // the launch key is also an indication we're running on the pendant
+        boolean runningInPendantContainer = (readLaunchKey() != null);
 
         if (runningInPendantContainer) {
             // if on the pendant, ignore passed host & port
@@ -59,21 +194,24 @@ public class Extension
                 port = 10080;
         }
 
-        transport = new TSocket(hostname, port);
-        transport.open();
-        protocol = new TBinaryProtocol(transport);
-
-        extensionProtocol = new TMultiplexedProtocol(protocol, "Extension");
-        controllerProtocol = new TMultiplexedProtocol(protocol, "Controller");
-        pendantProtocol = new TMultiplexedProtocol(protocol, "Pendant");
-        robotProtocol = new TMultiplexedProtocol(protocol, "Robot");
-
-        client = new yaskawa.ext.api.Extension.Client(extensionProtocol);
+        // an actor owns the only connection, so there is never a wait for one
+        pool = new ConnectionPool(hostname, port, b.actor ? 1 : b.connections, b.connectionOptions);
+        callStats.enable(b.callStats);
+        if (b.actor)
+            actor = new Actor(this, b.virtualThreads);
+        pump = new EventPump(this, b.pollFloor, b.pollCeiling);
+        logLevel = b.logLevel;
+        if (b.asyncLogging)
+            logWriter = new LogWriter(this, b.logBatchSize, b.logFlushMillis, 64*b.logBatchSize, b.virtualThreads);
+        if (b.virtualThreadPerTask)
+            dispatcher = new KeyedDispatcher(b.dispatchCapacity, pump.stats);
+        else if (b.dispatchThreads > 0)
+            dispatcher = new Dispatcher(b.dispatchThreads, b.dispatchCapacity, b.overflow, b.virtualThreads, pump.stats);
 
         id = 0;
         try {
             // API call
-            id = client.registerExtension(launchKey, canonicalName, version, vendor, supportedLanguages);
+            id = call(conn -> register(conn));
 
         } catch(IllegalArgument a) {
             throw new Exception("Extension registration failed - registerExtension() responded with illegal argument exception (check launchKey & canonicalName; extention already registered/running?): "+((a.getMessage()==null)?"":a.getMessage()));
@@ -83,10 +221,29 @@ public class Extension
         if (id == 0)
             throw new Exception("Extension registration failed.");
 
+        if (b.prefetch) {
+            // the remaining startup queries only depend on our ID, so can go in one burst
+            var startup = new Pipeline(this);
+            var ver = startup.add(conn -> conn.extension(), c -> c.send_apiVersion(), c -> c.recv_apiVersion());
+            var cid = startup.add(conn -> conn.extension(), c -> c.send_controller(id), c -> c.recv_controller());
+            var pid = startup.add(conn -> conn.extension(), c -> c.send_pendant(id), c -> c.recv_pendant());
+            startup.execute();
+            // anything that failed will just be fetched on first use
+            if (!ver.failed())
+                apiVersion = new Version(ver.get());
+            if (!cid.failed())
+                controllerID = cid.get();
+            if (!pid.failed())
+                pendantID = pid.get();
+        }
+
         controllerMap = new HashMap<Long, Controller>();
         pendantMap = new HashMap<Long, Pendant>();
 
-        loggingConsumers = new ArrayList<Consumer<yaskawa.ext.api.LoggingEvent>>();
+        loggingConsumers = new CopyOnWriteArrayList<Consumer<yaskawa.ext.api.LoggingEvent>>();
+
+        // last, as it publishes this to other threads' loggers
+        ExtensionLoggerFactory.connected(this);
     }
 
     public Extension(String canonicalName, Version version, String vendor, Set<String> supportedLanguages) throws TTransportException, IllegalArgument, Exception
@@ -94,39 +251,108 @@ public class Extension
         this(canonicalName, version, vendor, supportedLanguages, "", -1);
     }
 
+    // Look for launch key file in pendant container; null if not running on the pendant
+    static String readLaunchKey()
+    {
+        try {
+            // If launchKey file exists, read it to get launchKey
+            //and assume we're running in a pendant container
+            String launchKeyFilePath = "/extensionService/launchKey";
+            File launchKeyFile = new File(launchKeyFilePath);
+            if (launchKeyFile.exists() && launchKeyFile.isFile())
+                return new String(Files.readAllBytes(Paths.get(launchKeyFilePath)));
+        } catch (Exception e) {}
+        return null;
+    }
+
+    // register with the API service over conn, returning our new ID
+    protected long register(Connection conn) throws TException
+    {
+        String launchKey = readLaunchKey();
+        long newID = conn.extension().registerExtension(launchKey == null ? "" : launchKey,
+                                                        config.canonicalName, config.version, config.vendor, config.supportedLanguages);
+
+        // check the service accepts our ID over all pooled connections
+        if (pool.size() > 1)
+            for(var other : pool.connections())
+                other.extension().ping(newID);
+
+        return newID;
+    }
+
     public void close() 
     {
-        try {            
+        ExtensionLoggerFactory.closed(this);
+        throttle.stop();
+        if (logWriter != null)
+            logWriter.close(2000);
+        closed = true;
+
+        // stop everything that makes calls before the connections are closed
+        pump.stop();
+        synchronized(this) {
+            if (ioExecutor != null)
+                ioExecutor.shutdown();
+        }
+        for(var publisher : publishers)
+            publisher.close();
+        synchronized(this) {
+            if (eventExecutor != null)
+                eventExecutor.shutdown();
+        }
+        if (dispatcher != null)
+            dispatcher.stop();
+        if (actor != null)
+            actor.stop();
+        try {
+            stopRecording();
+        } catch (IOException e) {}
+
+        try {
             if (id > 0) {
-                synchronized(this) {
-                    client.unregisterExtension(id);
-                    transport.close();
-                }
+                // directly, as the actor (if any) has stopped
+                Call<Void> unregister = conn -> { conn.extension().unregisterExtension(id); return null; };
+                invokeDirect(unregister, Priority.Normal, unregister);
             }
         } catch (Exception e) {}
+        pool.close();
     }
 
 
+    /** Asynchronous access to Extension API calls - see Async */
+    public Async<Extension> async()
+    {
+        return new Async<Extension>(this, this);
+    }
+
+
+    /** The transport & protocol options in effect (after any fallback) */
+    public ConnectionOptions connectionOptions()
+    {
+        return new ConnectionOptions(pool.options());
+    }
+
     public Version apiVersion() throws TException
     {
-        synchronized(this) {
-            return new Version(client.apiVersion());
-        }
+        // constant for a given service, so only fetched once
+        if (apiVersion == null)
+            apiVersion = new Version(call(conn -> conn.extension().apiVersion()));
+        return new Version(apiVersion);
     }
 
     public void ping() throws TException, InvalidID
     {
-        synchronized(this) {
-            client.ping(id);
-        }
+        exec(conn -> conn.extension().ping(id));
     }
 
     public Controller controller() throws TException
     {
+        Long cid = controllerID;
+        if (cid == null)
+            controllerID = cid = call(conn -> conn.extension().controller(id));
         synchronized(this) {
-            var cid = client.controller(id);
             if (!controllerMap.containsKey(cid))
-                controllerMap.put(cid, new Controller(this, controllerProtocol, robotProtocol, cid));
+                controllerMap.put(cid, new Controller(this, cid));
 
             return controllerMap.get(cid);
         }
@@ -134,10 +360,12 @@ public class Extension
 
     public Pendant pendant() throws TException, InvalidID
     {
+        Long pid = pendantID;
+        if (pid == null)
+            pendantID = pid = call(conn -> conn.extension().pendant(id));
         synchronized(this) {
-            var pid = client.pendant(id);
             if (!pendantMap.containsKey(pid))
-                pendantMap.put(pid, new Pendant(this, pendantProtocol, pid));
+                pendantMap.put(pid, new Pendant(this, pid));
 
             return pendantMap.get(pid);
         }
@@ -146,37 +374,315 @@ public class Extension
 
     public void log(LoggingLevel level, String message) throws TException
     {
-        synchronized(this) {
-            client.log(id, level, message);
-            if (copyLoggingToStdOutput) 
-                System.out.println(logLevelNames[level.getValue()]+": "+message);
+        if (level.getValue() < logLevel.getValue())
+            return;
+        throttle.send(level, message, message, m -> send(level, m));
+    }
+
+    protected void send(LoggingLevel level, String message) throws TException
+    {
+        if (logWriter != null) {
+            logWriter.append(level, message);
+            return;
         }
+        exec(conn -> conn.extension().log(id, level, message));
+        if (copyLoggingToStdOutput) 
+            System.out.println(logLevelNames[level.getValue()]+": "+message);
+    }
+
+    /** rate limits & duplicate suppression for log() and the Pendant notice()/dispNotice()/error() calls */
+    public MessageThrottle throttle()
+    {
+        return throttle;
+    }
+
+
+    /** messages below level are discarded by log() */
+    public void setLogLevel(LoggingLevel level) { logLevel = level; }
+    public LoggingLevel logLevel() { return logLevel; }
+
+    /** with asyncLogging, the number of messages discarded as the queue was full or the service unreachable */
+    public long droppedLogMessages()
+    {
+        return (logWriter != null) ? logWriter.dropped() + logWriter.failed() : 0;
     }
 
 
     public void subscribeLoggingEvents() throws TException
     {
-        synchronized(this) {
-            client.subscribeLoggingEvents(id);
-        }
+        exec(conn -> conn.extension().subscribeLoggingEvents(id));
+        loggingSubscribed = true;
     }
 
     public void unsubscribeLoggingEvents() throws TException
     {
-        synchronized(this) {
-            client.unsubscribeLoggingEvents(id);
-        }
+        exec(conn -> conn.extension().unsubscribeLoggingEvents(id));
+        loggingSubscribed = false;
     }
 
     public List<LoggingEvent> logEvents() throws TException
     {
+        return call(conn -> conn.extension().logEvents(id));
+    }
+
+
+    // An API call made over a pooled Connection - a single one, as the Actor may merge
+    //  calls by running them twice (see MergedCalls)
+    @FunctionalInterface
+    interface Call<T>
+    {
+        T apply(Connection conn) throws TException;
+    }
+
+    @FunctionalInterface
+    interface Exec
+    {
+        void apply(Connection conn) throws TException;
+    }
+
+    // perform call over a free connection, waiting for one if all are in use
+    <T> T call(Call<T> call) throws TException
+    {
+        return invoke(call, Priority.Normal, call);
+    }
+
+    // as above, for a call that by default should be scheduled ahead of/behind others
+    <T> T call(Priority priority, Call<T> call) throws TException
+    {
+        return invoke(call, priority, call);
+    }
+
+    void exec(Exec exec) throws TException
+    {
+        exec(Priority.Normal, exec);
+    }
+
+    void exec(Priority priority, Exec exec) throws TException
+    {
+        invoke(exec, priority, conn -> { exec.apply(conn); return null; });
+    }
+
+    // site identifies the calling wrapper method for callStats
+    protected <T> T invoke(Object site, Priority priority, Call<T> call) throws TException
+    {
+        CallContext context = callContext.get();
+        priority = CallContext.priority(context, priority);
+        if (actor != null && !actor.onActorThread()) {
+            if (callStats.enabled())
+                callStats.resolve(site);
+            return actor.submit(site, priority, call, context);
+        }
+        return invokeDirect(site, priority, call);
+    }
+
+    // perform call on this thread
+    <T> T invokeDirect(Object site, Priority priority, Call<T> call) throws TException
+    {
+        int gen = generation;
+        CallContext context = callContext.get();
+
+        // deadline from withTimeout(), else the default call timeout
+        long timeout = (context != null) ? context.remainingMillis() : 0;
+        if (timeout == 0)
+            timeout = config.callTimeout;
+        if (timeout < 0)
+            throw new TTransportException(TTransportException.TIMED_OUT, "API call deadline expired");
+
+        boolean timed = callStats.enabled();
+        long waitStart = timed ? System.nanoTime() : 0;
+        Connection conn = (timeout > 0) ? pool.acquire(priority, timeout) : pool.acquire(priority);
+        long holdStart = timed ? System.nanoTime() : 0;
+        boolean started = false;
+        try {
+            if (context != null)
+                context.attach(conn); // throws if already cancelled
+            started = true;
+            conn.setTimeout((int)Math.min(timeout, Integer.MAX_VALUE));
+            return call.apply(conn);
+        } catch (TTransportException e) {
+            if (!started)
+                throw e;
+            if ((context != null && context.aborted()) || CallContext.isTimeout(e)) {
+                // reply may yet arrive & would be read as the reply to the next call on this
+                //  connection, so it gets reopened before reuse (the service itself is fine)
+                conn.broken = true;
+                throw new TTransportException(TTransportException.TIMED_OUT,
+                                              (context != null && context.aborted()) ? "API call cancelled" : "API call timed out", e);
+            }
+            pool.release(conn);
+            conn = null;
+            connectionFailed(gen, e);
+            throw e;
+        } finally {
+            if (context != null)
+                context.detach();
+            if (conn != null)
+                pool.release(conn);
+            if (timed)
+                callStats.record(site, holdStart - waitStart, System.nanoTime() - holdStart);
+        }
+    }
+
+    /** Connection wait & hold time statistics per API method */
+    public CallStats callStats()
+    {
+        return callStats;
+    }
+
+
+
+    @FunctionalInterface
+    public interface Task<T>
+    {
+        T run() throws TException;
+    }
+
+    /**
+     * Run task with a deadline that applies to all the API calls it makes, including
+     *  any wait for a free connection.  A call still in progress when the deadline passes
+     *  fails with a TTransportException of type TIMED_OUT, and the connection it was using
+     *  is reopened before being reused, so later calls aren't affected.
+     * Within an enclosing withTimeout() the tighter deadline applies (timeoutMillis 0 - just the enclosing one).
+     *  e.g.  var src = extension.withTimeout(2000, () -> controller.jobSource("BIGJOB"));
+     */
+    public <T> T withTimeout(long timeoutMillis, Task<T> task) throws TException
+    {
+        var outer = callContext.get();
+        return withContext(new CallContext(CallContext.deadline(outer, timeoutMillis), outer != null ? outer.priority : null), task);
+    }
+
+    /**
+     * Run task with all the API calls it makes scheduled at the given priority, in place of
+     *  each call's default - e.g. to make a bulk export yield to UI updates from other threads
+     *    extension.withPriority(Priority.Bulk, () -> controller.jobSources(names));
+     */
+    public <T> T withPriority(Priority priority, Task<T> task) throws TException
+    {
+        var outer = callContext.get();
+        return withContext(new CallContext(outer != null ? outer.deadlineNanos : 0, priority), task);
+    }
+
+    <T> T withContext(CallContext context, Task<T> task) throws TException
+    {
+        var outer = callContext.get();
+        callContext.set(context);
+        try {
+            return task.run();
+        } finally {
+            callContext.set(outer);
+        }
+    }
+
+
+    /** true if the connection to the API service is currently believed to be working */
+    public boolean connected()
+    {
+        return !disconnected;
+    }
+
+    /**
+     * Re-establish the connection to the API service and restore the session
+     *  (as done automatically if autoReconnect was enabled via the builder)
+     */
+    public void reconnect() throws TException
+    {
+        recover(generation);
+    }
+
+    protected void connectionFailed(int gen, TTransportException e) throws TException
+    {
+        if (closed || id == 0)
+            return;
+        disconnected = true;
+        if (config.autoReconnect)
+            recover(gen);
+    }
+
+    // reopen all connections, re-register & replay subscriptions, with exponential backoff.
+    //  gen is the connection generation in which the failure was seen - if another
+    //  thread has already recovered since, there is nothing to do
+    protected void recover(int gen) throws TException
+    {
+        synchronized(recoveryLock) {
+            if (gen != generation)
+                return;
+
+            var held = pool.acquireAll();
+            try {
+                long delay = config.reconnectDelay;
+                for(int attempt = 1; ; attempt++) {
+                    try {
+                        pool.reopen();
+                        restoreSession(held.get(0));
+                        break;
+                    } catch (TException e) {
+                        if (closed || (config.maxReconnectAttempts > 0 && attempt >= config.maxReconnectAttempts))
+                            throw e;
+                    }
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new TTransportException("Interrupted while reconnecting");
+                    }
+                    delay = Math.min(delay*2, config.maxReconnectDelay);
+                }
+                generation++;
+                disconnected = false;
+            } finally {
+                pool.releaseAll(held);
+            }
+        }
+    }
+
+    // re-register and bring the existing Controller & Pendant objects (and their consumers) over to the new session
+    protected void restoreSession(Connection conn) throws TException
+    {
+        id = register(conn);
+        apiVersion = null; // service may have been updated
+
         synchronized(this) {
-            return client.logEvents(id);
+            if (controllerID != null && controllerMap.containsKey(controllerID)) {
+                var controller = controllerMap.remove(controllerID);
+                long cid = conn.extension().controller(id);
+                controller.restore(conn, cid);
+                controllerMap.put(cid, controller);
+                controllerID = cid;
+            }
+            else
+                controllerID = null;
+
+            if (pendantID != null && pendantMap.containsKey(pendantID)) {
+                var pendant = pendantMap.remove(pendantID);
+                long pid = conn.extension().pendant(id);
+                pendant.restore(conn, pid);
+                pendantMap.put(pid, pendant);
+                pendantID = pid;
+            }
+            else
+                pendantID = null;
         }
+
+        if (loggingSubscribed)
+            conn.extension().subscribeLoggingEvents(id);
     }
 
-    Object lockObject() {
-        return this;
+    // threads that execute Async calls; one per pooled connection, or one per call in virtualThreadPerTask mode
+    synchronized ExecutorService ioExecutor()
+    {
+        if (ioExecutor == null && config.virtualThreadPerTask)
+            ioExecutor = Threads.perTaskExecutor("extension-io");
+        else if (ioExecutor == null) {
+            ioExecutor = Executors.newFixedThreadPool(pool.size(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    var t = new Thread(r, "extension-io-"+threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+                private final AtomicInteger threadCount = new AtomicInteger();
+            });
+        }
+        return ioExecutor;
     }
 
     // convenience
@@ -194,120 +700,186 @@ public class Extension
         loggingConsumers.add(c);
     }
 
+    public void removeLoggingConsumer(Consumer<yaskawa.ext.api.LoggingEvent> c)
+    {
+        loggingConsumers.remove(c);
+    }
+
+
+    // Reactive views of events, delivered by run() - see EventPublisher
+
+    /** Controller events of the given types (all types if none given), with demand-based backpressure */
+    public Flow.Publisher<ControllerEvent> controllerEvents(ControllerEventType... eventTypes)
+    {
+        return controllerEvents(Flow.defaultBufferSize(), eventTypes);
+    }
+
+    /** As above, buffering at most bufferCapacity events per subscriber */
+    public Flow.Publisher<ControllerEvent> controllerEvents(int bufferCapacity, ControllerEventType... eventTypes)
+    {
+        var types = (eventTypes.length > 0) ? eventTypes : ControllerEventType.values();
+        return new EventPublisher<ControllerEvent>(this, sink -> {
+            // any types not yet subscribed are subscribed in a single call
+            return List.of(controller().subscribe(EnumSet.copyOf(Arrays.asList(types)), sink));
+        }, bufferCapacity);
+    }
+
+    /** Pendant events of the given types (all types if none given), with demand-based backpressure */
+    public Flow.Publisher<PendantEvent> pendantEvents(PendantEventType... eventTypes)
+    {
+        return pendantEvents(Flow.defaultBufferSize(), eventTypes);
+    }
+
+    /** As above, buffering at most bufferCapacity events per subscriber */
+    public Flow.Publisher<PendantEvent> pendantEvents(int bufferCapacity, PendantEventType... eventTypes)
+    {
+        var types = (eventTypes.length > 0) ? eventTypes : PendantEventType.values();
+        return new EventPublisher<PendantEvent>(this, sink -> {
+            // any types not yet subscribed are subscribed in a single call
+            return List.of(pendant().subscribe(EnumSet.copyOf(Arrays.asList(types)), sink));
+        }, bufferCapacity);
+    }
+
+    /** Logging events (see subscribeLoggingEvents()), with demand-based backpressure */
+    public Flow.Publisher<LoggingEvent> loggingEvents()
+    {
+        return loggingEvents(Flow.defaultBufferSize());
+    }
+
+    public Flow.Publisher<LoggingEvent> loggingEvents(int bufferCapacity)
+    {
+        return new EventPublisher<LoggingEvent>(this, sink -> {
+            addLoggingConsumer(sink);
+            return List.of(() -> removeLoggingConsumer(sink));
+        }, bufferCapacity);
+    }
+
+    // executor on which publishers deliver events to subscribers
+    synchronized Executor eventExecutor()
+    {
+        if (!config.virtualThreadPerTask)
+            return ForkJoinPool.commonPool();
+        if (eventExecutor == null)
+            eventExecutor = Threads.perTaskExecutor("extension-publish");
+        return eventExecutor;
+    }
+
+
+
+    // snapshots, as the maps may be re-keyed by a reconnect while run() iterates
+    protected synchronized List<Controller> controllers()
+    {
+        return new ArrayList<Controller>(controllerMap.values());
+    }
+
+    protected synchronized List<Pendant> pendants()
+    {
+        return new ArrayList<Pendant>(pendantMap.values());
+    }
 
 
     public void run(BooleanSupplier stopWhen) throws InvalidID, TException, IllegalArgument, RuntimeException
     {
-        boolean stop = false;
-        do {
-            boolean recievedShutdownEvent = false;
-
-            for (Long c : controllerMap.keySet()) {
-                Controller controller = controllerMap.get(c);
-
-                for (ControllerEvent e : controller.events()) {
-                    if (outputEvents) {
-                        System.out.print("ControllerEvent:"+e.eventType);
-                        if (e.isSetProps()) {
-                            var props = e.getProps();
-                            for(var prop : props.entrySet()) 
-                                System.out.print("   "+prop.getKey()+":"+prop.getValue().toString());
-                        }
-                        System.out.println();
-                    }
-                    controller.handleEvent(e);
-                }
-            }
-    
-            for (Long p : pendantMap.keySet()) {
-                Pendant pendant = pendantMap.get(p);
-
-                for (PendantEvent e : pendant.events()) {
-                    if (outputEvents) {
-                        System.out.print("PendantEvent:"+e.eventType);
-                        if (e.isSetProps()) {
-                            var props = e.getProps();
-                            for(var prop : props.entrySet()) 
-                                System.out.print("  "+prop.getKey()+": "+prop.getValue().toString());
-                        }
-                        System.out.println();
-                    }
-                    pendant.handleEvent(e);
+        pump.run(stopWhen);
+    }
 
-                    recievedShutdownEvent = (e.getEventType() == PendantEventType.Shutdown);
-                }    
-            }
+    /**
+     * Record all events subsequently received by run() (before any coalescing) to file,
+     *  replacing any recording in progress - see JournalReplayer
+     */
+    public JournalRecorder startRecording(Path file) throws IOException
+    {
+        var r = new JournalRecorder(file);
+        stopRecording();
+        recorder = r;
+        recordingFailure = null;
+        return r;
+    }
 
-            if (loggingConsumers.size() > 0) {
-                for(var event : logEvents()) {
-                    for (var consumer : loggingConsumers)
-                        consumer.accept(event);
-                }
-            }
+    public void stopRecording() throws IOException
+    {
+        var r = recorder;
+        recorder = null;
+        if (r != null)
+            r.close();
+    }
 
-            stop = stopWhen.getAsBoolean() || recievedShutdownEvent;
-            try { 
-                if (!stop)
-                    Thread.sleep(200); 
-            } catch (InterruptedException ex) { 
-                stop = true; 
-            }
+    /** the error that stopped the last recording, if it failed */
+    public IOException recordingFailure()
+    {
+        return recordingFailure;
+    }
 
-        } while (!stop);
+    void stopRecording(JournalRecorder r, IOException failure)
+    {
+        if (recorder == r) {
+            recorder = null;
+            recordingFailure = failure;
+        }
+        try {
+            r.close();
+        } catch (IOException e) {}
+    }
+
+    /** Statistics of the event polling done by run() */
+    public PumpStats pumpStats()
+    {
+        return pump.stats;
+    }
+
+    /** Receive the measurements of each event poll cycle made by run() (called on the run() thread) */
+    public void addPumpCycleConsumer(Consumer<PumpStats.Cycle> c)
+    {
+        pump.cycleConsumers.add(c);
     }
 
 
+    /** Any holding o - see AnyConverters for the types supported */
     public static Any toAny(Object o)
     {
-        if (o instanceof Boolean)
-            return Any.bValue((Boolean)o);
-        else if (o instanceof Integer)
-            return Any.iValue((Integer)o);
-        else if (o instanceof Long)
-            return Any.iValue((Long)o);
-        else if (o instanceof Double)
-            return Any.rValue((Double)o);
-        else if (o instanceof String)
-            return Any.sValue((String)o);
-        else if (o instanceof Position)
-            return Any.pValue((Position)o);
-        else if (o instanceof List) {
-            var a = new ArrayList<Any>( ((List)o).size() );
-            for(var e : (List)o)
-                a.add(toAny(e));
-            return Any.aValue(a);
-        }
-        else if (o instanceof Map) {
-            Map map = (Map)o;
-            var m = new HashMap<String,Any>();
-            for(Object k : map.keySet()) {
-                if (!(k instanceof String))
-                    throw new RuntimeException("Maps with non-String keys unsupported");
-                m.put(toAny(k).getSValue(), toAny(map.get(k)));
-            }
-            return Any.mValue(m);
-        }
-        throw new RuntimeException("Unsupported conversion to Any from "+o.getClass().getSimpleName());
+        return AnyConverters.toAny(o);
     }
 
+    /** a as a plain Java value - see AnyDecoder for typed access */
+    public static Object fromAny(Any a)
+    {
+        return AnyDecoder.decode(a);
+    }
 
 
 
-    private static final String[] logLevelNames = { "DEBUG", "INFO", "WARN", "CRITICAL" };
 
-    protected long id;
-    protected yaskawa.ext.api.Extension.Client client;
-    protected TTransport transport;
-    protected TProtocol protocol;
-    protected TMultiplexedProtocol extensionProtocol;
-    protected TMultiplexedProtocol controllerProtocol;
-    protected TMultiplexedProtocol pendantProtocol;
-    protected TMultiplexedProtocol robotProtocol;
+    static final String[] logLevelNames = { "DEBUG", "INFO", "WARN", "CRITICAL" };
+
+    protected volatile long id;
+    protected Builder config;
+    protected ConnectionPool pool;
+    protected volatile int generation = 0; // incremented on each reconnect
+    protected volatile boolean disconnected = false;
+    protected volatile boolean closed = false;
+    protected volatile boolean loggingSubscribed = false;
+    protected final Object recoveryLock = new Object();
+    protected final ThreadLocal<CallContext> callContext = new ThreadLocal<CallContext>();
+    protected final CallStats callStats = new CallStats();
+    protected volatile Version apiVersion;
+    protected volatile Long controllerID;
+    protected volatile Long pendantID;
+    protected ExecutorService ioExecutor;
+    protected ExecutorService eventExecutor; // null unless in virtualThreadPerTask mode
+    protected LogWriter logWriter; // null unless asyncLogging
+    protected volatile LoggingLevel logLevel;
+    protected final MessageThrottle throttle = new MessageThrottle();
+    protected Actor actor; // null unless in actor mode
+    protected EventPump pump;
+    protected Dispatcher dispatcher; // null if consumers are called by run() directly
+    protected volatile JournalRecorder recorder;
+    protected volatile IOException recordingFailure;
 
     protected Map<Long, Controller> controllerMap;
     protected Map<Long, Pendant> pendantMap;
 
-    protected ArrayList<Consumer<yaskawa.ext.api.LoggingEvent>> loggingConsumers;
+    protected List<Consumer<yaskawa.ext.api.LoggingEvent>> loggingConsumers;
+    protected final Set<SubmissionPublisher<?>> publishers = ConcurrentHashMap.newKeySet();
 
 }
 
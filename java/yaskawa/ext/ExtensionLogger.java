@@ -0,0 +1,80 @@
+package yaskawa.ext;
+
+import org.slf4j.event.Level;
+import org.slf4j.helpers.MarkerIgnoringBase;
+
+
+/**
+ * SLF4J logger of ExtensionLoggerFactory.
+ * A disabled level costs a comparison; an enabled one queues the format & arguments, which are
+ *  only formatted by the factory's background thread.
+ */
+class ExtensionLogger extends MarkerIgnoringBase
+{
+    ExtensionLogger(ExtensionLoggerFactory factory, String name)
+    {
+        this.factory = factory;
+        this.name = name;
+        generation = -1;
+    }
+
+    public boolean isTraceEnabled() { return enabled(Level.TRACE); }
+    public void trace(String msg) { if (enabled(Level.TRACE)) log(Level.TRACE, msg, null, null); }
+    public void trace(String format, Object arg) { if (enabled(Level.TRACE)) log(Level.TRACE, format, new Object[] { arg }, null); }
+    public void trace(String format, Object arg1, Object arg2) { if (enabled(Level.TRACE)) log(Level.TRACE, format, new Object[] { arg1, arg2 }, null); }
+    public void trace(String format, Object... arguments) { if (enabled(Level.TRACE)) log(Level.TRACE, format, arguments, null); }
+    public void trace(String msg, Throwable t) { if (enabled(Level.TRACE)) log(Level.TRACE, msg, null, t); }
+
+    public boolean isDebugEnabled() { return enabled(Level.DEBUG); }
+    public void debug(String msg) { if (enabled(Level.DEBUG)) log(Level.DEBUG, msg, null, null); }
+    public void debug(String format, Object arg) { if (enabled(Level.DEBUG)) log(Level.DEBUG, format, new Object[] { arg }, null); }
+    public void debug(String format, Object arg1, Object arg2) { if (enabled(Level.DEBUG)) log(Level.DEBUG, format, new Object[] { arg1, arg2 }, null); }
+    public void debug(String format, Object... arguments) { if (enabled(Level.DEBUG)) log(Level.DEBUG, format, arguments, null); }
+    public void debug(String msg, Throwable t) { if (enabled(Level.DEBUG)) log(Level.DEBUG, msg, null, t); }
+
+    public boolean isInfoEnabled() { return enabled(Level.INFO); }
+    public void info(String msg) { if (enabled(Level.INFO)) log(Level.INFO, msg, null, null); }
+    public void info(String format, Object arg) { if (enabled(Level.INFO)) log(Level.INFO, format, new Object[] { arg }, null); }
+    public void info(String format, Object arg1, Object arg2) { if (enabled(Level.INFO)) log(Level.INFO, format, new Object[] { arg1, arg2 }, null); }
+    public void info(String format, Object... arguments) { if (enabled(Level.INFO)) log(Level.INFO, format, arguments, null); }
+    public void info(String msg, Throwable t) { if (enabled(Level.INFO)) log(Level.INFO, msg, null, t); }
+
+    public boolean isWarnEnabled() { return enabled(Level.WARN); }
+    public void warn(String msg) { if (enabled(Level.WARN)) log(Level.WARN, msg, null, null); }
+    public void warn(String format, Object arg) { if (enabled(Level.WARN)) log(Level.WARN, format, new Object[] { arg }, null); }
+    public void warn(String format, Object arg1, Object arg2) { if (enabled(Level.WARN)) log(Level.WARN, format, new Object[] { arg1, arg2 }, null); }
+    public void warn(String format, Object... arguments) { if (enabled(Level.WARN)) log(Level.WARN, format, arguments, null); }
+    public void warn(String msg, Throwable t) { if (enabled(Level.WARN)) log(Level.WARN, msg, null, t); }
+
+    public boolean isErrorEnabled() { return enabled(Level.ERROR); }
+    public void error(String msg) { if (enabled(Level.ERROR)) log(Level.ERROR, msg, null, null); }
+    public void error(String format, Object arg) { if (enabled(Level.ERROR)) log(Level.ERROR, format, new Object[] { arg }, null); }
+    public void error(String format, Object arg1, Object arg2) { if (enabled(Level.ERROR)) log(Level.ERROR, format, new Object[] { arg1, arg2 }, null); }
+    public void error(String format, Object... arguments) { if (enabled(Level.ERROR)) log(Level.ERROR, format, arguments, null); }
+    public void error(String msg, Throwable t) { if (enabled(Level.ERROR)) log(Level.ERROR, msg, null, t); }
+
+
+    protected boolean enabled(Level level)
+    {
+        int current = factory.generation.get();
+        if (generation != current) {
+            threshold = factory.threshold(name);
+            generation = current;
+        }
+        return level.toInt() >= threshold;
+    }
+
+    protected void log(Level level, String format, Object[] args, Throwable t)
+    {
+        factory.append(name, level, format, args, t);
+    }
+
+
+    private static final long serialVersionUID = 1L;
+
+    // not serialized - a deserialized logger resolves to the one of its name (NamedLoggerBase.readResolve())
+    protected final transient ExtensionLoggerFactory factory;
+    // level threshold, as of the factory's level generation (racy reads only cause a redundant refresh)
+    protected volatile int threshold;
+    protected volatile int generation;
+}
@@ -0,0 +1,275 @@
+package yaskawa.ext;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.MessageFormatter;
+
+import yaskawa.ext.api.LoggingLevel;
+
+
+/**
+ * SLF4J logger factory (bound via org.slf4j.impl.StaticLoggerBinder, in yaskawa-ext-slf4j-2.2.0.jar)
+ *  that sends log messages to the extension log - i.e. through Extension.log(), as extension.info() etc. do.
+ * Loggers only check their level and append the message unformatted to a bounded lock-free ring;
+ *  a background thread formats and sends them, so logging never blocks the caller (when the ring
+ *  is full, messages are dropped and counted).
+ * Messages go to the first Extension connected in the process, or the one given to attach();
+ *  those logged before then are held in the ring.  TRACE & DEBUG map to LoggingLevel.Debug and
+ *  ERROR to Critical.  libthrift's own messages concern the connections the log is sent over,
+ *  so they are written to System.err instead.
+ *  e.g.  ExtensionLoggerFactory.setLevel("com.acme.vision", Level.DEBUG);
+ *        LoggerFactory.getLogger(Camera.class).debug("frame {} took {} ms", n, millis);
+ */
+public class ExtensionLoggerFactory implements ILoggerFactory
+{
+    static final int RING_CAPACITY = 4096; // power of 2
+    static final String THRIFT_LOGGERS = "org.apache.thrift.";
+
+    public static ExtensionLoggerFactory instance()
+    {
+        return instance;
+    }
+
+    /** send messages to extension (null to hold them until another is attached) */
+    public static void attach(Extension extension)
+    {
+        instance.target = extension;
+        if (extension != null)
+            instance.wake();
+    }
+
+    /**
+     * Set the level of the named logger and those below it in the dot separated hierarchy,
+     *  unless they have a level of their own (null to inherit from above).
+     * The root logger ("") is at INFO by default.
+     */
+    public static void setLevel(String name, Level level)
+    {
+        synchronized(instance) {
+            var updated = new HashMap<String, Level>(instance.levels);
+            if (level != null)
+                updated.put(name, level);
+            else if (!name.isEmpty())
+                updated.remove(name);
+            instance.levels = updated;
+            instance.generation.incrementAndGet();
+        }
+    }
+
+    /** number of messages dropped as the ring was full */
+    public static long dropped()
+    {
+        return instance.dropped.sum();
+    }
+
+    public Logger getLogger(String name)
+    {
+        return loggers.computeIfAbsent(name, n -> new ExtensionLogger(this, n));
+    }
+
+
+    // if the first connected, extension becomes the destination
+    static void connected(Extension extension)
+    {
+        synchronized(instance) {
+            if (instance.target == null)
+                attach(extension);
+        }
+    }
+
+    static void closed(Extension extension)
+    {
+        synchronized(instance) {
+            if (instance.target == extension) {
+                instance.flush(extension);
+                instance.target = null;
+            }
+        }
+    }
+
+    // level (org.slf4j.event.Level int) below which name discards messages
+    int threshold(String name)
+    {
+        var levels = this.levels;
+        for(var n = name; ; n = n.substring(0, n.lastIndexOf('.'))) {
+            var level = levels.get(n);
+            if (level != null)
+                return level.toInt();
+            if (n.lastIndexOf('.') < 0)
+                return levels.get("").toInt();
+        }
+    }
+
+    void append(String logger, Level level, String format, Object[] args, Throwable t)
+    {
+        if (Thread.currentThread() == writer)
+            return; // e.g. from the transport while sending - which would only feed back
+        if (logger.startsWith(THRIFT_LOGGERS)) {
+            System.err.println(level+" "+new Record(logger, level, format, args, t).format());
+            return;
+        }
+        if (!ring.offer(new Record(logger, level, format, args, t))) {
+            dropped.increment();
+            return;
+        }
+        if (waiting)
+            wake();
+    }
+
+
+    protected void wake()
+    {
+        synchronized(this) {
+            if (writer == null) {
+                writer = Threads.newThread("extension-slf4j", this::run, false);
+                writer.start();
+                return;
+            }
+        }
+        LockSupport.unpark(writer);
+    }
+
+    protected void run()
+    {
+        while (true) {
+            var extension = target;
+            if (extension == null || ring.isEmpty()) {
+                waiting = true;
+                if (ring.isEmpty() || target == null)
+                    LockSupport.parkNanos(this, 100000000);
+                waiting = false;
+                continue;
+            }
+            if (flush(extension) == 0)
+                LockSupport.parkNanos(this, 100000); // next slot claimed by a logger that is yet to fill it
+        }
+    }
+
+    // send the records in the ring, returning how many
+    protected synchronized int flush(Extension extension)
+    {
+        int n = 0;
+        Record r;
+        while ((r = ring.poll()) != null) {
+            n++;
+            try {
+                extension.log(r.loggingLevel(), r.format());
+            } catch (Exception e) {
+                // the service is unreachable - logging mustn't fail the caller
+            }
+        }
+        return n;
+    }
+
+
+    static class Record
+    {
+        Record(String logger, Level level, String format, Object[] args, Throwable t)
+        {
+            this.logger = logger;
+            this.level = level;
+            this.message = format;
+            this.args = args;
+            this.throwable = t;
+        }
+
+        LoggingLevel loggingLevel()
+        {
+            switch (level) {
+                case ERROR: return LoggingLevel.Critical;
+                case WARN: return LoggingLevel.Warn;
+                case INFO: return LoggingLevel.Info;
+                default: return LoggingLevel.Debug;
+            }
+        }
+
+        String format()
+        {
+            var t = throwable;
+            String text = message;
+            if (args != null) {
+                var tuple = MessageFormatter.arrayFormat(message, args);
+                text = tuple.getMessage();
+                if (t == null)
+                    t = tuple.getThrowable();
+            }
+            var sb = new StringBuilder(logger.substring(logger.lastIndexOf('.')+1)).append(": ").append(text);
+            if (t != null) {
+                var trace = new StringWriter();
+                t.printStackTrace(new PrintWriter(trace));
+                sb.append('\n').append(trace);
+            }
+            return sb.toString();
+        }
+
+        final String logger;
+        final Level level;
+        final String message;
+        final Object[] args;
+        final Throwable throwable;
+    }
+
+    // bounded multi-producer, single-consumer ring of records
+    static class Ring
+    {
+        Ring(int capacity)
+        {
+            slots = new AtomicReferenceArray<Record>(capacity);
+            mask = capacity - 1;
+        }
+
+        boolean offer(Record r)
+        {
+            while (true) {
+                long t = tail.get();
+                if (t - head >= slots.length())
+                    return false;
+                if (tail.compareAndSet(t, t+1)) {
+                    slots.set((int)(t & mask), r);
+                    return true;
+                }
+            }
+        }
+
+        // next record, or null if none (or the next claimed slot is not yet filled)
+        Record poll()
+        {
+            int i = (int)(head & mask);
+            var r = slots.get(i);
+            if (r == null)
+                return null;
+            slots.set(i, null);
+            head++;
+            return r;
+        }
+
+        boolean isEmpty()
+        {
+            return head == tail.get();
+        }
+
+        final AtomicReferenceArray<Record> slots;
+        final int mask;
+        final AtomicLong tail = new AtomicLong();
+        volatile long head = 0; // written only by the consumer
+    }
+
+
+    protected static final ExtensionLoggerFactory instance = new ExtensionLoggerFactory();
+
+    protected volatile Map<String, Level> levels = Map.of("", Level.INFO);
+    protected final AtomicInteger generation = new AtomicInteger(); // changed with levels, to refresh logger thresholds
+    protected final ConcurrentHashMap<String, ExtensionLogger> loggers = new ConcurrentHashMap<String, ExtensionLogger>();
+    protected final Ring ring = new Ring(RING_CAPACITY);
+    protected final LongAdder dropped = new LongAdder();
+    protected volatile Extension target;
+    protected volatile Thread writer;
+    protected volatile boolean waiting = false;
+}
@@ -0,0 +1,158 @@
+package yaskawa.ext;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Records the events received by Extension.run() to an append-only journal file,
+ *  for later replay by JournalReplayer (see Extension.startRecording()).
+ * The file is written through a memory mapping, extended a chunk at a time.  Each entry is
+ *   kind (1 byte)  time since recording started (8 bytes, ns)  length (4 bytes)  event (compact protocol)
+ *  following an 8 byte header; a zero kind marks the end.  On close the unused remainder of the last
+ *  chunk is truncated - or where a mapped file can't be (Windows, if the mapping can't be released),
+ *  left zeroed, which reads as the end marker.
+ */
+public class JournalRecorder implements AutoCloseable
+{
+    static final int MAGIC = 0x59454a31; // "YEJ1"
+    static final byte END = 0;
+    static final byte CONTROLLER_EVENT = 1;
+    static final byte PENDANT_EVENT = 2;
+    static final byte LOGGING_EVENT = 3;
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    public JournalRecorder(Path file) throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                         StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0, CHUNK_SIZE);
+        mapped.putInt(MAGIC).putInt(0);
+        bytes = new Bytes();
+        protocol = new TCompactProtocol(new TIOStreamTransport(bytes));
+        start = System.nanoTime();
+    }
+
+    public synchronized void append(ControllerEvent e) throws IOException { append(CONTROLLER_EVENT, e); }
+    public synchronized void append(PendantEvent e) throws IOException { append(PENDANT_EVENT, e); }
+    public synchronized void append(LoggingEvent e) throws IOException { append(LOGGING_EVENT, e); }
+
+    /** number of events recorded */
+    public synchronized long count()
+    {
+        return count;
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (channel == null)
+            return;
+        long size = base + mapped.position();
+        mapped.force();
+        unmap(mapped);
+        mapped = null;
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            // still mapped - the zeroed remainder marks the end
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    protected void append(byte kind, TBase<?,?> event) throws IOException
+    {
+        if (channel == null)
+            throw new IOException("Journal closed");
+        long time = System.nanoTime() - start;
+
+        bytes.reset();
+        try {
+            event.write(protocol);
+        } catch (TException e) {
+            throw new IOException(e);
+        }
+
+        int length = bytes.size();
+        ensure(1 + 8 + 4 + length + 1); // leave room for the end marker
+        mapped.put(kind).putLong(time).putInt(length).put(bytes.array(), 0, length);
+        count++;
+    }
+
+    // extend the mapping when the next entry won't fit
+    protected void ensure(int size) throws IOException
+    {
+        if (mapped.remaining() >= size)
+            return;
+        map(base + mapped.position(), Math.max(CHUNK_SIZE, size));
+    }
+
+    protected void map(long position, int size) throws IOException
+    {
+        if (mapped != null) {
+            mapped.force();
+            unmap(mapped);
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        base = position;
+    }
+
+    // release buffer's mapping now rather than when it's collected, so the file can be truncated
+    //  (which Windows refuses while it's mapped) - buffer mustn't be used afterwards
+    protected static void unmap(MappedByteBuffer buffer)
+    {
+        if (invokeCleaner == null)
+            return;
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    // exposes the buffer, to copy serialized events straight into the mapping
+    static class Bytes extends ByteArrayOutputStream
+    {
+        byte[] array() { return buf; }
+    }
+
+
+    // sun.misc.Unsafe.invokeCleaner() (Java 9+, jdk.unsupported), or null if unavailable - reached by
+    //  reflection as there is no public way to unmap a buffer
+    private static Object unsafe;
+    private static Method invokeCleaner;
+
+    static {
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+    }
+
+    protected FileChannel channel;
+    protected MappedByteBuffer mapped;
+    protected long base; // file offset of the mapping
+    protected final Bytes bytes;
+    protected final TProtocol protocol;
+    protected final long start;
+    protected long count = 0;
+}
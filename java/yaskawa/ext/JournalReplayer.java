@@ -0,0 +1,174 @@
+package yaskawa.ext;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Feeds the events of a journal written by JournalRecorder back to consumers, either at the
+ *  speed they were recorded or as fast as possible - e.g. to benchmark consumers against
+ *  recorded traffic, or to reproduce an issue seen in the field.
+ *  e.g.  new JournalReplayer(Paths.get("events.journal")).replay(controller, pendant, false);
+ */
+public class JournalReplayer
+{
+    /** Receives replayed events; only the kinds of interest need be overridden */
+    public interface Sink
+    {
+        default void controllerEvent(ControllerEvent e) throws TException {}
+        default void pendantEvent(PendantEvent e) throws TException {}
+        default void loggingEvent(LoggingEvent e) throws TException {}
+    }
+
+    public JournalReplayer(Path file)
+    {
+        this.file = file;
+    }
+
+    /** replay to the consumers registered with controller & pendant (either may be null) */
+    public long replay(Controller controller, Pendant pendant, boolean realTime) throws IOException, TException
+    {
+        return replay(new Sink() {
+            public void controllerEvent(ControllerEvent e) { if (controller != null) controller.handleEvent(e); }
+            public void pendantEvent(PendantEvent e) throws TException { if (pendant != null) pendant.handleEvent(e); }
+        }, realTime);
+    }
+
+    /**
+     * Replay every event in the journal to sink, returning the number of events.
+     * If realTime, the recorded intervals between events are reproduced.
+     */
+    public long replay(Sink sink, boolean realTime) throws IOException, TException
+    {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var window = new Window(channel);
+            try {
+                var mapped = window.ensure(8);
+                if (mapped.remaining() < 8 || mapped.getInt() != JournalRecorder.MAGIC)
+                    throw new IOException("Not an event journal: "+file);
+                mapped.getInt(); // reserved
+
+                long start = System.nanoTime();
+                long count = 0;
+                byte[] buf = new byte[256];
+                while (window.remaining() > 0) {
+                    mapped = window.ensure(1 + 8 + 4);
+                    byte kind = mapped.get();
+                    if (kind == JournalRecorder.END)
+                        break;
+                    if (mapped.remaining() < 8 + 4)
+                        throw new IOException("Truncated event journal: "+file);
+                    long time = mapped.getLong();
+                    int length = mapped.getInt();
+                    if (length < 0 || length > window.remaining())
+                        throw new IOException("Corrupt event journal: "+file+" (entry of "+length+" bytes at offset "+(window.position() - 13)+")");
+                    if (length > buf.length)
+                        buf = new byte[Math.max(length, buf.length*2)];
+                    window.ensure(length).get(buf, 0, length);
+
+                    if (realTime)
+                        waitUntil(start + time);
+
+                    var protocol = new TCompactProtocol(new TMemoryInputTransport(buf, 0, length));
+                    switch (kind) {
+                        case JournalRecorder.CONTROLLER_EVENT:
+                            sink.controllerEvent(read(new ControllerEvent(), protocol));
+                            break;
+                        case JournalRecorder.PENDANT_EVENT:
+                            sink.pendantEvent(read(new PendantEvent(), protocol));
+                            break;
+                        case JournalRecorder.LOGGING_EVENT:
+                            sink.loggingEvent(read(new LoggingEvent(), protocol));
+                            break;
+                        default:
+                            throw new IOException("Corrupt event journal: "+file);
+                    }
+                    count++;
+                }
+                return count;
+            } finally {
+                window.close();
+            }
+        }
+    }
+
+
+    // The journal is mapped a window at a time, as it's recorded (see JournalRecorder), since a single
+    //  mapping can't exceed 2GB
+    protected static class Window
+    {
+        Window(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            size = channel.size();
+        }
+
+        // file offset of the next byte to read
+        long position()
+        {
+            return base + ((mapped != null) ? mapped.position() : 0);
+        }
+
+        long remaining()
+        {
+            return size - position();
+        }
+
+        // the mapping from position(), remapped if needed so at least n bytes (or all that are left) can be read
+        MappedByteBuffer ensure(int n) throws IOException
+        {
+            if (mapped != null && mapped.remaining() >= n)
+                return mapped;
+            long position = position();
+            long length = Math.min(size - position, Math.max(JournalRecorder.CHUNK_SIZE, n));
+            close();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            base = position;
+            return mapped;
+        }
+
+        void close()
+        {
+            if (mapped != null)
+                JournalRecorder.unmap(mapped);
+            mapped = null;
+        }
+
+        protected final FileChannel channel;
+        protected final long size;
+        protected MappedByteBuffer mapped;
+        protected long base; // file offset of the mapping
+    }
+
+
+    protected static <T extends TBase<?,?>> T read(T event, TCompactProtocol protocol) throws TException
+    {
+        event.read(protocol);
+        return event;
+    }
+
+    protected static void waitUntil(long nanoTime) throws IOException
+    {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Replay interrupted");
+            }
+        }
+    }
+
+
+    protected Path file;
+}
@@ -0,0 +1,118 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * Dispatcher that runs consumers on a thread per task - virtual threads where the JVM supports them
+ *  (see Extension.Builder.virtualThreadPerTask()).
+ * Each key (the item/signal, or type of events of no particular item - see Dispatcher) with events
+ *  pending has its own thread, which dispatches that key's events in order and then ends; so
+ *  consumers for different items run concurrently and can block in API calls without holding up
+ *  each other or polling.
+ * At most capacity events can be pending, beyond which the event pump waits (Overflow.Block).
+ */
+class KeyedDispatcher extends Dispatcher
+{
+    KeyedDispatcher(int capacity, PumpStats stats)
+    {
+        super(Overflow.Block, stats);
+        executor = Threads.perTaskExecutor("extension-consumer");
+        queues = new ConcurrentHashMap<Object, ArrayDeque<Runnable>>();
+        permits = new Semaphore(capacity);
+        this.capacity = capacity;
+    }
+
+    protected void publish(Object target, Object event, Object key, Object item, long received) throws InterruptedException
+    {
+        if (!running)
+            return;
+        permits.acquire();
+        Runnable task = () -> {
+            try {
+                dispatch(target, event, received);
+            } finally {
+                permits.release();
+                if (depth() == 0)
+                    signalIdle();
+            }
+        };
+
+        // a key's queue exists while a thread is dispatching its events, and holds those still to come
+        var start = new boolean[1];
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                start[0] = true;
+                return new ArrayDeque<Runnable>();
+            }
+            queue.add(task);
+            return queue;
+        });
+        if (start[0]) {
+            try {
+                executor.execute(() -> drain(key, task));
+            } catch (RejectedExecutionException e) {
+                queues.remove(key);
+                permits.release();
+            }
+        }
+    }
+
+    protected void drain(Object key, Runnable first)
+    {
+        var next = first;
+        while (next != null) {
+            next.run();
+            var following = new Runnable[1];
+            queues.computeIfPresent(key, (k, queue) -> {
+                following[0] = queue.poll();
+                return (following[0] != null) ? queue : null;
+            });
+            next = following[0];
+        }
+    }
+
+    int depth()
+    {
+        return capacity - permits.availablePermits();
+    }
+
+    void awaitIdle() throws InterruptedException
+    {
+        idleLock.lock();
+        try {
+            while (depth() > 0 && running)
+                idle.await();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    protected void signalIdle()
+    {
+        idleLock.lock();
+        try {
+            idle.signalAll();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    void stop()
+    {
+        running = false;
+        executor.shutdown();
+        signalIdle();
+    }
+
+
+    protected ExecutorService executor;
+    protected ConcurrentHashMap<Object, ArrayDeque<Runnable>> queues;
+    protected Semaphore permits;
+    protected int capacity;
+    protected volatile boolean running = true;
+    protected final ReentrantLock idleLock = new ReentrantLock();
+    protected final Condition idle = idleLock.newCondition();
+}
@@ -0,0 +1,69 @@
+package yaskawa.ext;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Histogram of durations with power-of-two nanosecond buckets (so percentiles are accurate
+ *  to within a factor of 2), recorded without locking - see PumpStats.
+ */
+public class LatencyHistogram
+{
+    static final int BUCKETS = 40; // bucket i holds durations in [2^i, 2^(i+1)) ns; the last also holds anything longer
+
+    public long count() { return count.sum(); }
+    public double maxMillis() { return max.get() / 1e6; }
+
+    public double meanMillis()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / 1e6 / n;
+    }
+
+    /** upper bound of the duration below which fraction p (0..1) of the recorded durations fall */
+    public double percentileMillis(double p)
+    {
+        long n = count.sum();
+        if (n == 0)
+            return 0;
+        long rank = (long)Math.ceil(p * n);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(Math.pow(2, i+1), max.get()) / 1e6;
+        }
+        return maxMillis();
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    public String toString()
+    {
+        return String.format("n %d  avg %.3f  p50 %.3f  p99 %.3f  max %.3f ms",
+                             count(), meanMillis(), percentileMillis(0.5), percentileMillis(0.99), maxMillis());
+    }
+
+
+    void record(long nanos)
+    {
+        int bucket = (nanos <= 1) ? 0 : Math.min(BUCKETS-1, 63 - Long.numberOfLeadingZeros(nanos));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+
+    protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder total = new LongAdder();
+    protected final AtomicLong max = new AtomicLong();
+}
@@ -0,0 +1,119 @@
+package yaskawa.ext;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.thrift.TException;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Sends Extension.log() messages from a background thread (see Extension.Builder.asyncLogging()).
+ * Callers only append to a lock-free queue; the writer sends the queued messages as one pipelined
+ *  burst of oneway calls once batchSize have accumulated or flushMillis after the first,
+ *  whichever comes sooner.  If capacity messages are already queued, further messages are dropped
+ *  (and counted) rather than blocking the caller.
+ */
+class LogWriter
+{
+    LogWriter(Extension extension, int batchSize, long flushMillis, int capacity, boolean virtual)
+    {
+        this.extension = extension;
+        this.batchSize = batchSize;
+        this.flushNanos = flushMillis * 1000000;
+        this.capacity = capacity;
+        thread = Threads.newThread("extension-log", this::run, virtual);
+        thread.start();
+    }
+
+    // false if the message was dropped as the queue is full or the writer closed
+    boolean append(LoggingLevel level, String message)
+    {
+        if (!running)
+            return false;
+        int n = size.incrementAndGet();
+        if (n > capacity) {
+            size.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        queue.offer(new Entry(level, message));
+        if (n == batchSize)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    long dropped() { return dropped.sum(); }
+    long failed() { return failed.sum(); }
+
+    // send everything queued, then stop the writer (waiting at most waitMillis)
+    void close(long waitMillis)
+    {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    protected void run()
+    {
+        while (running || size.get() > 0) {
+            if (running && size.get() < batchSize)
+                LockSupport.parkNanos(this, flushNanos);
+            while (size.get() > 0)
+                flush();
+        }
+    }
+
+    // send up to batchSize queued messages as one burst
+    protected void flush()
+    {
+        var batch = new Pipeline(extension);
+        Entry entry;
+        while (batch.size() < batchSize && (entry = queue.poll()) != null) {
+            size.decrementAndGet();
+            var e = entry;
+            batch.addOneway(conn -> conn.extension(), c -> c.send_log(extension.id, e.level, e.message));
+            if (extension.copyLoggingToStdOutput)
+                System.out.println(Extension.logLevelNames[e.level.getValue()]+": "+e.message);
+        }
+        if (batch.size() == 0)
+            return;
+        try {
+            extension.withPriority(Priority.Bulk, () -> { batch.execute(); return null; });
+        } catch (TException | RuntimeException e) {
+            // the service is unreachable; logging mustn't fail the extension, so the batch is lost
+            failed.add(batch.size());
+        }
+    }
+
+    static class Entry
+    {
+        Entry(LoggingLevel level, String message)
+        {
+            this.level = level;
+            this.message = message;
+        }
+
+        final LoggingLevel level;
+        final String message;
+    }
+
+
+    protected final Extension extension;
+    protected final int batchSize;
+    protected final long flushNanos;
+    protected final int capacity;
+    protected final Thread thread;
+    protected final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    protected final AtomicInteger size = new AtomicInteger();
+    protected final LongAdder dropped = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected volatile boolean running = true;
+}
@@ -0,0 +1,198 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolDecorator;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+
+/**
+ * Runs plain API calls (Extension.Call lambdas, each making a single call) pipelined over one
+ *  connection, as the Actor does with calls queued back-to-back - see Pipeline.
+ * A lambda can't be split into its send & receive, so each is run twice over a view of the
+ *  connection: first to send its request, reading the reply being put off; then, once the
+ *  earlier replies have been read, to receive it - the request it makes again being discarded
+ *  and the reply's sequence ID checked against that of the request actually sent.
+ */
+class MergedCalls extends TProtocolDecorator
+{
+    // run calls over conn, completing each of results with the outcome of the corresponding call
+    static void run(Connection conn, List<Extension.Call<?>> calls, List<CompletableFuture<Object>> results) throws TException
+    {
+        var gate = new Gate(conn.transport);
+        var merged = new MergedCalls(gate, Connection.protocol(conn.options, gate));
+        var view = new Connection(conn, merged);
+
+        var awaiting = new ArrayDeque<Integer>(); // sent, reply not yet read
+        var seqids = new int[calls.size()];
+        int next = 0;
+        try {
+            while (next < calls.size() || !awaiting.isEmpty()) {
+                while (next < calls.size() && awaiting.size() < Pipeline.MAX_IN_FLIGHT) {
+                    int i = next++;
+                    if (merged.send(view, calls.get(i), results.get(i))) {
+                        seqids[i] = merged.seqid;
+                        awaiting.add(i);
+                    }
+                }
+                if (!awaiting.isEmpty()) {
+                    int i = awaiting.poll();
+                    merged.receive(view, calls.get(i), results.get(i), seqids[i]);
+                }
+            }
+        } catch (TException | RuntimeException e) {
+            // connection level failure - replies still due can't be trusted
+            for(var result : results)
+                result.completeExceptionally(e);
+            // as in Pipeline.run(), anything but a transport failure leaves the stream out of sync
+            if (!(e instanceof TTransportException))
+                conn.broken = true;
+            throw e;
+        }
+    }
+
+    protected MergedCalls(Gate gate, TProtocol protocol)
+    {
+        super(protocol);
+        this.gate = gate;
+    }
+
+    // run call up to reading its reply; false if it needs none (e.g. a oneway call), result then being complete
+    protected boolean send(Connection view, Extension.Call<?> call, CompletableFuture<Object> result) throws TTransportException
+    {
+        sending = true;
+        gate.discard = false;
+        try {
+            result.complete(call.apply(view));
+            return false;
+        } catch (Deferred d) {
+            return true;
+        } catch (TTransportException e) {
+            throw e;
+        } catch (TException | RuntimeException e) {
+            // failed before sending anything
+            result.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    // run call again to read its reply, which is to the request sent with seqid
+    protected void receive(Connection view, Extension.Call<?> call, CompletableFuture<Object> result, int seqid) throws TException
+    {
+        sending = false;
+        gate.discard = true;
+        replied = false;
+        this.seqid = seqid;
+        try {
+            result.complete(call.apply(view));
+        } catch (TTransportException e) {
+            throw e;
+        } catch (TApplicationException e) {
+            // a mismatched reply is left unread & means the stream is out of sync
+            if (e.getType() == TApplicationException.BAD_SEQUENCE_ID
+                || e.getType() == TApplicationException.WRONG_METHOD_NAME)
+                throw e;
+            result.completeExceptionally(e);
+        } catch (TException e) {
+            // declared by the call (e.g. IllegalArgument) - the reply was read in full
+            result.completeExceptionally(e);
+        }
+        if (!replied)
+            throw new IllegalStateException("API call didn't read its reply the second time");
+    }
+
+    public void writeMessageBegin(TMessage message) throws TException
+    {
+        if (sending)
+            seqid = message.seqid;
+        else {
+            if (replied)
+                throw new IllegalStateException("API call makes more than one call, so can't be merged");
+            resent = message;
+        }
+        super.writeMessageBegin(message);
+    }
+
+    public TMessage readMessageBegin() throws TException
+    {
+        if (sending)
+            throw deferred;
+        var message = super.readMessageBegin();
+        replied = true;
+        if (message.seqid != seqid)
+            throw new TApplicationException(TApplicationException.BAD_SEQUENCE_ID,
+                                            resent.name+" failed: out of sequence response: expected "+seqid+" but got "+message.seqid);
+        // the request's name has the service prefixed (see TMultiplexedProtocol), the reply's doesn't
+        if (!resent.name.endsWith(":"+message.name) && !resent.name.equals(message.name))
+            throw new TApplicationException(TApplicationException.WRONG_METHOD_NAME,
+                                            resent.name+" failed: wrong method name in reply: "+message.name);
+        // as the client expects, having sent the request again
+        return new TMessage(message.name, message.type, resent.seqid);
+    }
+
+
+    // thrown on reading the reply while sending - there's no stack trace, as it's expected
+    protected static class Deferred extends TTransportException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+
+    // passes through to the connection's transport, discarding writes while a call is received
+    protected static class Gate extends TTransport
+    {
+        Gate(TTransport transport)
+        {
+            this.transport = transport;
+        }
+
+        public boolean isOpen() { return transport.isOpen(); }
+        public void open() throws TTransportException { transport.open(); }
+        public void close() {} // the connection's, not the view's to close
+
+        public int read(byte[] buf, int off, int len) throws TTransportException
+        {
+            return transport.read(buf, off, len);
+        }
+
+        public void write(byte[] buf, int off, int len) throws TTransportException
+        {
+            if (!discard)
+                transport.write(buf, off, len);
+        }
+
+        public void flush() throws TTransportException
+        {
+            if (!discard)
+                transport.flush();
+        }
+
+        public byte[] getBuffer() { return transport.getBuffer(); }
+        public int getBufferPosition() { return transport.getBufferPosition(); }
+        public int getBytesRemainingInBuffer() { return transport.getBytesRemainingInBuffer(); }
+        public void consumeBuffer(int len) { transport.consumeBuffer(len); }
+
+        protected final TTransport transport;
+        protected boolean discard = false;
+    }
+
+
+    protected static final Deferred deferred = new Deferred();
+
+    protected Gate gate;
+    protected boolean sending;
+    protected boolean replied;
+    protected int seqid;      // of the request last sent / whose reply is being received
+    protected TMessage resent; // request of the call being received, as it was made again
+}
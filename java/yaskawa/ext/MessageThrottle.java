@@ -0,0 +1,247 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.thrift.TException;
+
+
+/**
+ * Limits how often the same message is sent by Extension.log() and Pendant.notice()/dispNotice()/error(),
+ *  so a fault loop can't flood the service or the operator's screen.
+ * Limits are configured per category - the LoggingLevel of a log message, or the Disposition of a notice
+ *  (notice() is Neutral, error() Negative); categories without limits are sent unchanged.
+ *  - rateLimit() gives each distinct message a token bucket: burst may be sent at once, then perSecond
+ *  - suppressDuplicates() sends a message at most once per window; the repeats are then summarised
+ *     as the message followed by " (repeated N times)"
+ *  e.g.  extension.throttle().rateLimit(LoggingLevel.Warn, 1, 5)
+ *                            .suppressDuplicates(Disposition.Negative, 10000);
+ */
+public class MessageThrottle
+{
+    public synchronized MessageThrottle rateLimit(Enum<?> category, double perSecond, int burst)
+    {
+        var limit = copy(category);
+        limit.perSecond = perSecond;
+        limit.burst = burst;
+        put(category, limit);
+        return this;
+    }
+
+    public synchronized MessageThrottle suppressDuplicates(Enum<?> category, long windowMillis)
+    {
+        var limit = copy(category);
+        limit.windowNanos = windowMillis * 1000000;
+        put(category, limit);
+        return this;
+    }
+
+    /** remove all limits for category */
+    public synchronized MessageThrottle unlimited(Enum<?> category)
+    {
+        var updated = new HashMap<Enum<?>, Limit>(limits);
+        updated.remove(category);
+        limits = updated;
+        return this;
+    }
+
+    /** number of messages not sent (a summarised repeat counts once per repeat) */
+    public long suppressed()
+    {
+        long n = 0;
+        for(var state : states.values())
+            n += state.totalSuppressed;
+        return n + retiredSuppressed.sum();
+    }
+
+    void stop()
+    {
+        synchronized(this) {
+            if (timer != null)
+                timer.cancel();
+            timer = null;
+        }
+        flush();
+    }
+
+
+    @FunctionalInterface
+    interface Sender
+    {
+        void send(String message) throws TException;
+    }
+
+    // send message via sender unless the limits of category hold it back; key identifies the message
+    //  within category (as the message text alone may be shared by e.g. notices with different titles)
+    void send(Enum<?> category, String key, String message, Sender sender) throws TException
+    {
+        var limit = limits.get(category);
+        if (limit == null) {
+            sender.send(message);
+            return;
+        }
+
+        long now = System.nanoTime();
+        State state;
+        int repeats;
+        while (true) {
+            state = states.computeIfAbsent(List.of(category, key), k -> new State(limit, message, sender, now));
+            synchronized(state) {
+                if (!state.retired)
+                    break;
+            }
+        }
+        synchronized(state) {
+            state.limit = limit;
+            state.sender = sender;
+            state.lastSeen = now;
+            if (!state.admit(now)) {
+                state.suppressed++;
+                state.totalSuppressed++;
+                return;
+            }
+            repeats = state.suppressed;
+            state.suppressed = 0;
+        }
+        sender.send(repeats > 0 ? summary(message, repeats+1) : message);
+    }
+
+
+    static final long SWEEP_MILLIS = 1000;
+
+    static String summary(String message, int count)
+    {
+        return message+" (repeated "+count+" times)";
+    }
+
+    // send summaries of repeats whose window has passed, and forget messages no longer seen
+    protected void flush()
+    {
+        long now = System.nanoTime();
+        for(var entry : states.entrySet()) {
+            var state = entry.getValue();
+            int repeats = 0;
+            Sender sender;
+            synchronized(state) {
+                sender = state.sender;
+                if (state.suppressed > 0 && now - state.lastSent >= state.limit.windowNanos && state.takeToken(now)) {
+                    repeats = state.suppressed;
+                    state.suppressed = 0;
+                    state.lastSent = now;
+                }
+                else if (state.suppressed == 0 && now - state.lastSeen > state.idleNanos()) {
+                    state.retired = true;
+                    states.remove(entry.getKey(), state);
+                    retiredSuppressed.add(state.totalSuppressed);
+                    continue;
+                }
+            }
+            if (repeats > 0) {
+                try {
+                    sender.send(summary(state.message, repeats));
+                } catch (TException | RuntimeException e) {
+                    // best effort - the service may be unreachable
+                }
+            }
+        }
+    }
+
+    protected Limit copy(Enum<?> category)
+    {
+        var old = limits.get(category);
+        return (old != null) ? new Limit(old) : new Limit();
+    }
+
+    protected void put(Enum<?> category, Limit limit)
+    {
+        // limits is replaced rather than modified, so send() can read it without locking
+        var updated = new HashMap<Enum<?>, Limit>(limits);
+        updated.put(category, limit);
+        limits = updated;
+        if (timer == null) {
+            // summarise repeats that stop, and forget messages no longer seen
+            timer = new Timer("extension-throttle", true);
+            timer.scheduleAtFixedRate(new TimerTask() {
+                public void run() { flush(); }
+            }, SWEEP_MILLIS, SWEEP_MILLIS);
+        }
+    }
+
+
+    static class Limit
+    {
+        Limit() {}
+
+        Limit(Limit other)
+        {
+            perSecond = other.perSecond;
+            burst = other.burst;
+            windowNanos = other.windowNanos;
+        }
+
+        double perSecond = 0; // 0 - no rate limit
+        int burst = 1;
+        long windowNanos = 0;  // 0 - duplicates not suppressed
+    }
+
+    static class State
+    {
+        State(Limit limit, String message, Sender sender, long now)
+        {
+            this.limit = limit;
+            this.message = message;
+            this.sender = sender;
+            tokens = limit.burst;
+            refilled = now;
+            lastSent = now - limit.windowNanos;
+            lastSeen = now;
+        }
+
+        boolean admit(long now)
+        {
+            if (limit.windowNanos > 0 && now - lastSent < limit.windowNanos)
+                return false;
+            if (!takeToken(now))
+                return false;
+            lastSent = now;
+            return true;
+        }
+
+        boolean takeToken(long now)
+        {
+            if (limit.perSecond <= 0)
+                return true;
+            tokens = Math.min(limit.burst, tokens + (now - refilled) / 1e9 * limit.perSecond);
+            refilled = now;
+            if (tokens < 1)
+                return false;
+            tokens -= 1;
+            return true;
+        }
+
+        // time after which an unused state holds nothing a new one wouldn't
+        long idleNanos()
+        {
+            long refill = (limit.perSecond > 0) ? (long)(limit.burst / limit.perSecond * 1e9) : 0;
+            return Math.max(limit.windowNanos, refill);
+        }
+
+        Limit limit;
+        final String message;
+        Sender sender;
+        double tokens;
+        long refilled;
+        long lastSent;
+        long lastSeen;
+        int suppressed = 0;
+        long totalSuppressed = 0;
+        boolean retired = false;
+    }
+
+
+    protected volatile Map<Enum<?>, Limit> limits = Map.of();
+    protected final ConcurrentHashMap<List<Object>, State> states = new ConcurrentHashMap<List<Object>, State>();
+    protected final LongAdder retiredSuppressed = new LongAdder(); // totalSuppressed of forgotten states
+    protected Timer timer;
+}
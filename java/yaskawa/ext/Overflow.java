@@ -0,0 +1,16 @@
+package yaskawa.ext;
+
+
+/**
+ * What the event pump does when the dispatch buffer is full because consumers
+ *  can't keep up with incoming events - see Extension.Builder.dispatchBuffer().
+ */
+public enum Overflow
+{
+    /** wait for consumers to catch up (no events are lost, but polling stalls) */
+    Block,
+    /** discard the oldest undispatched event */
+    DropOldest,
+    /** replace an undispatched event for the same item/signal with the newer one; block if there is none */
+    Coalesce
+}
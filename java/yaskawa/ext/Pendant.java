@@ -3,6 +3,7 @@ package yaskawa.ext;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.*;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -10,7 +11,6 @@ import java.nio.file.Path;
 import java.nio.ByteBuffer;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TProtocol;
 
 import java.nio.charset.StandardCharsets;
 
@@ -18,69 +18,82 @@ import yaskawa.ext.api.*;
 
 public class Pendant
 {
-    Pendant(Extension ext, TProtocol protocol, long id) //throws org.apache.thrift.TTransportException
+    Pendant(Extension ext, long id)
     {
         extension = ext;
-        client = new yaskawa.ext.api.Pendant.Client(protocol);
         this.id = id;
-        eventConsumers = new HashMap<PendantEventType, ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>>();
-        itemEventConsumers = new HashMap<PendantEventType, HashMap<String, ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>>>();
+        dispatch = new DispatchTable<PendantEventType, yaskawa.ext.api.PendantEvent>(PendantEventType.class);
+        subscribedEventTypes = ConcurrentHashMap.newKeySet();
+        explicitEventTypes = ConcurrentHashMap.newKeySet();
+        coalescedEventTypes = ConcurrentHashMap.newKeySet();
+    }
+
+    /** Asynchronous access to Pendant API calls - see Async */
+    public Async<Pendant> async()
+    {
+        return new Async<Pendant>(extension, this);
+    }
+
+    /** Start a batch of Pendant API calls to be pipelined over one connection - see Pipeline */
+    public PendantBatch batch()
+    {
+        return new PendantBatch(this);
     }
 
     public Version pendantVersion() throws TException
     {
-        synchronized(extension) {
-            return new Version(client.pendantVersion(id));
-        }
+        return new Version(extension.call(conn -> conn.pendant().pendantVersion(id)));
     }
 
+    // Explicitly subscribed types stay subscribed when their last consumer is removed (see addEventConsumer()),
+    //  and types with consumers stay subscribed when explicitly unsubscribed
     public void subscribeEventTypes(Set<PendantEventType> types) throws TException
     {
-        synchronized(extension) {
-            client.subscribeEventTypes(id, types);
-        }
+        explicitEventTypes.addAll(types);
+        syncSubscriptions();
     }
 
     public void unsubscribeEventTypes(Set<PendantEventType> types) throws TException
     {
-        synchronized(extension) {
-            client.unsubscribeEventTypes(id, types);
-        }
+        explicitEventTypes.removeAll(types);
+        syncSubscriptions();
+    }
+
+    protected void subscribeTypes(Set<PendantEventType> types) throws TException
+    {
+        extension.exec(conn -> conn.pendant().subscribeEventTypes(id, types));
+        subscribedEventTypes.addAll(types);
+    }
+
+    protected void unsubscribeTypes(Set<PendantEventType> types) throws TException
+    {
+        extension.exec(conn -> conn.pendant().unsubscribeEventTypes(id, types));
+        subscribedEventTypes.removeAll(types);
     }
 
     public List<yaskawa.ext.api.PendantEvent> events() throws TException
     {
-        synchronized(extension) {
-            return client.events(id);
-        }
+        return extension.call(conn -> conn.pendant().events(id));
     }
 
     public String currentLanguage() throws TException
     {
-        synchronized(extension) {
-            return client.currentLanguage(id);
-        }
+        return extension.call(conn -> conn.pendant().currentLanguage(id));
     }
 
     public String currentLocale() throws TException
     {
-        synchronized(extension) {
-            return client.currentLocale(id);
-        }
+        return extension.call(conn -> conn.pendant().currentLocale(id));
     }
 
     public String currentScreenName() throws TException
     {
-        synchronized(extension) {
-            return client.currentScreenName(id);
-        }
+        return extension.call(conn -> conn.pendant().currentScreenName(id));
     }
 
     public List<String> registerYML(String ymlSource) throws TException
     {
-        synchronized(extension) {
-            return client.registerYML(id, ymlSource);
-        }
+        return extension.call(Priority.Bulk, conn -> conn.pendant().registerYML(id, ymlSource));
     }
 
     // convenience - on error, prints errors to output and throws
@@ -99,214 +112,147 @@ public class Pendant
     public void registerImageFile(String imageFileName) throws IllegalArgument, TException, IOException
     {
         try {
-            synchronized(extension) {
-                client.registerImageFile(id, imageFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerImageFile(id, imageFileName));
         } catch (Exception e) {
             // something went wrong - possible file isn't accessible from service end, so send data over API 
             var imageBytes = Files.readAllBytes(Paths.get(imageFileName));
-            synchronized(extension) {
-                client.registerImageData(id, ByteBuffer.wrap(imageBytes), imageFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerImageData(id, ByteBuffer.wrap(imageBytes), imageFileName));
         }
     }
     public void registerImageData(java.nio.ByteBuffer imageData, String imageName) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.registerImageData(id, imageData, imageName);
-        }
+        extension.exec(Priority.Bulk, conn -> conn.pendant().registerImageData(id, imageData, imageName));
     }
 
     public void registerHTMLFile(String htmlFileName) throws IllegalArgument, TException, IOException
     {
         try {
-            synchronized(extension) {
-                client.registerHTMLFile(id, htmlFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerHTMLFile(id, htmlFileName));
         } catch (Exception e) {
             // something went wrong - possible file isn't accessible from service end, so send data over API
             var dataBytes = Files.readAllBytes(Paths.get(htmlFileName));
-            synchronized(extension) {
-                client.registerHTMLData(id, ByteBuffer.wrap(dataBytes), htmlFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerHTMLData(id, ByteBuffer.wrap(dataBytes), htmlFileName));
         }
     }
     public void registerHTMLData(java.nio.ByteBuffer htmlData, String htmlName) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.registerHTMLData(id, htmlData, htmlName);
-        }
+        extension.exec(Priority.Bulk, conn -> conn.pendant().registerHTMLData(id, htmlData, htmlName));
     }
 
 
     public void registerTranslationFile(String locale, String translationFileName) throws IllegalArgument, TException, IOException
     {
         try {
-            synchronized(extension) {
-                client.registerTranslationFile(id, locale, translationFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerTranslationFile(id, locale, translationFileName));
         } catch (Exception e) {
             // something went wrong - possible file isn't accessible from service end, so send data over API
             var dataBytes = Files.readAllBytes(Paths.get(translationFileName));
-            synchronized(extension) {
-                client.registerTranslationData(id, locale, ByteBuffer.wrap(dataBytes), translationFileName);
-            }
+            extension.exec(Priority.Bulk, conn -> conn.pendant().registerTranslationData(id, locale, ByteBuffer.wrap(dataBytes), translationFileName));
         }
     }
     public void registerTranslationData(String locale, java.nio.ByteBuffer translationData, String translationName) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.registerTranslationData(id, locale, translationData, translationName);
-        }
+        extension.exec(Priority.Bulk, conn -> conn.pendant().registerTranslationData(id, locale, translationData, translationName));
     }
 
 
 
     public void registerUtilityWindow(String identifier, String itemType, String menuItemName, String windowTitle) throws TException
     {
-        synchronized(extension) {
-            client.registerUtilityWindow(id, identifier, itemType, menuItemName, windowTitle);
-        }
+        extension.exec(conn -> conn.pendant().registerUtilityWindow(id, identifier, itemType, menuItemName, windowTitle));
     }
 
     public void unregisterUtilityWindow(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.unregisterUtilityWindow(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().unregisterUtilityWindow(id, identifier));
     }
 
     public void openUtilityWindow(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.openUtilityWindow(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().openUtilityWindow(id, identifier));
     }
 
     public void closeUtilityWindow(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.closeUtilityWindow(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().closeUtilityWindow(id, identifier));
     }
 
     public void collapseUtilityWindow(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.collapseUtilityWindow(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().collapseUtilityWindow(id, identifier));
     }
 
     public void expandUtilityWindow(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.expandUtilityWindow(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().expandUtilityWindow(id, identifier));
     }
 
 
 
     public void registerIntegration(String identifier, IntegrationPoint integrationPoint, String itemType, String buttonLabel, String buttonImage) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.registerIntegration(id, identifier, integrationPoint, itemType, buttonLabel, buttonImage);
-        }
+        extension.exec(conn -> conn.pendant().registerIntegration(id, identifier, integrationPoint, itemType, buttonLabel, buttonImage));
     }
 
     public void unregisterIntegration(String identifier) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.unregisterIntegration(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().unregisterIntegration(id, identifier));
     }
 
 
     public Any property(String itemID, String name) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.property(id, itemID, name);
-        }
+        return extension.call(Priority.Interactive, conn -> conn.pendant().property(id, itemID, name));
     }
 
     public void setProperty(String itemID, String name, Any value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, value);
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, value));
     }
     // convenience overloads
     public void setProperty(String itemID, String name, boolean value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.bValue(value));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.bValue(value)));
     }
     public void setProperty(String itemID, String name, int value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.iValue((long)value));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.iValue((long)value)));
     }
     public void setProperty(String itemID, String name, long value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.iValue(value));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.iValue(value)));
     }
     public void setProperty(String itemID, String name, double value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.rValue(value));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.rValue(value)));
     }
     public void setProperty(String itemID, String name, String value) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.sValue(value));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.sValue(value)));
     }
 
     public void setProperty(String itemID, String name, List<Object> array) throws IllegalArgument, TException
     {
-        var a = new ArrayList<Any>(array.size());
-        for(var e : array) {
-            a.add(Extension.toAny(e));
-        }
-
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.aValue(a));
-        }
+        var a = AnyConverters.array(array);
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.aValue(a)));
     }
 
     public void setProperty(String itemID, String name, Object[] array) throws IllegalArgument, TException
     {
-        var a = new ArrayList<Any>(array.length);
-        for(var e : array) {
-            a.add(Extension.toAny(e));
-        }
-
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.aValue(a));
-        }
+        var a = AnyConverters.array(array);
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.aValue(a)));
     }
 
     public void setProperty(String itemID, String name, Map<String, Object> map) throws IllegalArgument, TException
     {
-        var m = new HashMap<String,Any>();
-        for(var k : map.keySet()) {
-            m.put(k, Extension.toAny(map.get(k)));
-        }
-        synchronized(extension) {
-            client.setProperty(id, itemID, name, Any.mValue(m));
-        }
+        var m = AnyConverters.map(map);
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperty(id, itemID, name, Any.mValue(m)));
     }
 
 
     public void setProperties(List<PropValue> propValues) throws org.apache.thrift.TException
     {
-        synchronized(extension) {
-            client.setProperties(id, this.propValues(propValues));
-        }
+        extension.exec(Priority.Interactive, conn -> conn.pendant().setProperties(id, this.propValues(propValues)));
     }
 
     // Convenience
@@ -380,23 +326,17 @@ public class Pendant
     }
     public static PropValue propValue(String itemID, String name, List<Object> value)
     {
-        var a = new ArrayList<Any>(value.size());
-        for(var e : value)
-            a.add(Extension.toAny(e));
+        var a = AnyConverters.array(value);
         return new PropValue(itemID, name, Any.aValue(a));
     }
     public static PropValue propValue(String itemID, String name, Object[] value)
     {
-        var a = new ArrayList<Any>(value.length);
-        for(var e : value)
-            a.add(Extension.toAny(e));
+        var a = AnyConverters.array(value);
         return new PropValue(itemID, name, Any.aValue(a));
     }
     public static PropValue propValue(String itemID, String name, Map<String, Object> value)
     {
-        var m = new HashMap<String,Any>();
-        for(var k : value.keySet())
-            m.put(k, Extension.toAny(value.get(k)));
+        var m = AnyConverters.map(value);
         return new PropValue(itemID, name, Any.mValue(m));
     }
 
@@ -414,173 +354,128 @@ public class Pendant
     public void setChartConfig(String chartID, Any config)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setChartConfig(id, chartID, config);
-        }
+        extension.exec(conn -> conn.pendant().setChartConfig(id, chartID, config));
     }
 
     public void setChartConfig(String chartID, Map<String, Object> config)
             throws IllegalArgument, TException
     {
-        var m = new HashMap<String,Any>();
-        for(var k : config.keySet()) {
-            m.put(k, Extension.toAny(config.get(k)));
-        }
-        synchronized(extension) {
-            client.setChartConfig(id, chartID, Any.mValue(m));
-        }
+        var m = AnyConverters.map(config);
+        extension.exec(conn -> conn.pendant().setChartConfig(id, chartID, Any.mValue(m)));
     }
 
     public void setChartData(String chartID, Map<String, Data> dataset)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setChartData(id, chartID, dataset, false);
-        }
+        extension.exec(conn -> conn.pendant().setChartData(id, chartID, dataset, false));
     }
 
     public void setChartData(String chartID, Map<String, Data> dataset, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.setChartData(id, chartID, dataset, right);
-        }
+        extension.exec(conn -> conn.pendant().setChartData(id, chartID, dataset, right));
     }
 
     public Map<String, Data> getChartData(String chartID)
         throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.getChartData(id, chartID, false);
-        }
+        return extension.call(conn -> conn.pendant().getChartData(id, chartID, false));
     }
 
     public Map<String, Data> getChartData(String chartID, boolean right)
         throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            return client.getChartData(id, chartID, right);
-        }
+        return extension.call(conn -> conn.pendant().getChartData(id, chartID, right));
     }
 
     public void addChartKey(String chartID, String key, Data data)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.addChartKey(id, chartID, key, data, false);
-        }
+        extension.exec(conn -> conn.pendant().addChartKey(id, chartID, key, data, false));
     }
 
     public void addChartKey(String chartID, String key, Data data, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.addChartKey(id, chartID, key, data, right);
-        }
+        extension.exec(conn -> conn.pendant().addChartKey(id, chartID, key, data, right));
     }
     
     public void removeChartKey(String chartID, String key)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.removeChartKey(id, chartID, key, false);
-        }
+        extension.exec(conn -> conn.pendant().removeChartKey(id, chartID, key, false));
     }
 
     public void removeChartKey(String chartID, String key, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.removeChartKey(id, chartID, key, right);
-        }
+        extension.exec(conn -> conn.pendant().removeChartKey(id, chartID, key, right));
     }
 
     public void hideChartKey(String chartID, String key)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.hideChartKey(id, chartID, key, true, false);
-        }
+        extension.exec(conn -> conn.pendant().hideChartKey(id, chartID, key, true, false));
     }
 
     public void hideChartKey(String chartID, String key, boolean hidden)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.hideChartKey(id, chartID, key, hidden, false);
-        }
+        extension.exec(conn -> conn.pendant().hideChartKey(id, chartID, key, hidden, false));
     }
 
     public void hideChartKey(String chartID, String key, boolean hidden, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.hideChartKey(id, chartID, key, hidden, right);
-        }
+        extension.exec(conn -> conn.pendant().hideChartKey(id, chartID, key, hidden, right));
     }
 
     public void appendChartPoint(String chartID, String key, DataPoint pt)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.appendChartPoints(id, chartID, key, Arrays.<DataPoint>asList(pt), false);
-        }
+        extension.exec(conn -> conn.pendant().appendChartPoints(id, chartID, key, Arrays.<DataPoint>asList(pt), false));
     }
 
     public void appendChartPoint(String chartID, String key, DataPoint pt, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.appendChartPoints(id, chartID, key, Arrays.<DataPoint>asList(pt), right);
-        }
+        extension.exec(conn -> conn.pendant().appendChartPoints(id, chartID, key, Arrays.<DataPoint>asList(pt), right));
     }
 
     public void appendChartPoints(String chartID, String key, List<DataPoint> pts)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.appendChartPoints(id, chartID, key, pts, false);
-        }
+        extension.exec(conn -> conn.pendant().appendChartPoints(id, chartID, key, pts, false));
     }
 
     public void appendChartPoints(String chartID, String key, List<DataPoint> pts, boolean right)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.appendChartPoints(id, chartID, key, pts, right);
-        }
+        extension.exec(conn -> conn.pendant().appendChartPoints(id, chartID, key, pts, right));
     }
 
     public void incrementChartKey(String chartID, String key)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.incrementChartKey(id, chartID, key, 1.0);
-        }
+        extension.exec(conn -> conn.pendant().incrementChartKey(id, chartID, key, 1.0));
     }
 
     public void decrementChartKey(String chartID, String key)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.incrementChartKey(id, chartID, key, -1.0);
-        }
+        extension.exec(conn -> conn.pendant().incrementChartKey(id, chartID, key, -1.0));
     }
 
     public void incrementChartKey(String chartID, String key, double value)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.incrementChartKey(id, chartID, key, value);
-        }
+        extension.exec(conn -> conn.pendant().incrementChartKey(id, chartID, key, value));
     }
 
     public void decrementChartKey(String chartID, String key, double value)
             throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.incrementChartKey(id, chartID, key, -value);
-        }
+        extension.exec(conn -> conn.pendant().incrementChartKey(id, chartID, key, -value));
     }
 
     /*
@@ -609,29 +504,27 @@ public class Pendant
     }
     */
 
+    // notices are throttled by title & message - see Extension.throttle()
     public void notice(String title, String message, String log) throws TException
     {
-        synchronized(extension) {
-            client.notice(id, title, message, log);
-        }
+        extension.throttle.send(Disposition.Neutral, "notice\0"+title+"\0"+message, message,
+                                m -> extension.exec(conn -> conn.pendant().notice(id, title, m, log)));
     }
     public void notice(String title, String message) throws TException
     { notice(title, message, ""); }
 
     public void dispNotice(Disposition disposition, String title, String message, String log) throws TException
     {
-        synchronized(extension) {
-            client.dispNotice(id, disposition, title, message, log);
-        }
+        extension.throttle.send(disposition, "dispNotice\0"+title+"\0"+message, message,
+                                m -> extension.exec(conn -> conn.pendant().dispNotice(id, disposition, title, m, log)));
     }
     public void dispNotice(Disposition disposition, String title, String message) throws TException
     { dispNotice(disposition, title, message, ""); }
 
     public void error(String title, String message, String log) throws TException
     {
-        synchronized(extension) {
-            client.error(id, title, message, log);
-        }
+        extension.throttle.send(Disposition.Negative, "error\0"+title+"\0"+message, message,
+                                m -> extension.exec(conn -> conn.pendant().error(id, title, m, log)));
     }
     public void error(String title, String message) throws TException
     { error(title, message, ""); }
@@ -639,86 +532,196 @@ public class Pendant
 
     public void popupDialog(String identifier, String title, String message, String positiveOption, String negativeOption) throws IllegalArgument, TException
     {
-        synchronized(extension) {
-            client.popupDialog(id, identifier, title, message, positiveOption, negativeOption);
-        }
+        extension.exec(conn -> conn.pendant().popupDialog(id, identifier, title, message, positiveOption, negativeOption));
     }
 
     public void cancelPopupDialog(String identifier) throws TException
     {
-        synchronized(extension) {
-            client.cancelPopupDialog(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().cancelPopupDialog(id, identifier));
     }
     
     public String insertInstructionAtSelectedLine(String instruction) throws TException
     {
-        synchronized(extension) {
-            return client.insertInstructionAtSelectedLine(id, instruction);
-        }
+        return extension.call(conn -> conn.pendant().insertInstructionAtSelectedLine(id, instruction));
     }
 
     public void displayScreen(String identifier) throws TException
     {
-        synchronized(extension) {
-            client.displayScreen(id, identifier);
-        }
+        extension.exec(conn -> conn.pendant().displayScreen(id, identifier));
     }
     
     // Event consumer functions
 
-    public synchronized void addEventConsumer(PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    /**
+     * If enabled, of the events of eventType received by a single poll in run(), only the latest
+     *  for each item/signal (e.g. IO address) is delivered - consumers skip stale intermediate values
+     */
+    public void coalesceEvents(PendantEventType eventType, boolean enable)
     {
-        if (!eventConsumers.containsKey(eventType))
-            eventConsumers.put(eventType, new ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>());
-        eventConsumers.get(eventType).add(c);        
+        if (enable)
+            coalescedEventTypes.add(eventType);
+        else
+            coalescedEventTypes.remove(eventType);
+    }
 
-        subscribeEventTypes(Set.of( eventType ));
+    public void addEventConsumer(PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    {
+        subscribe(Set.of( eventType ), c);
     }
 
-    public synchronized void addItemEventConsumer(String itemName, PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    public void addEventConsumer(Set<PendantEventType> eventTypes, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
     {
-        if (!itemEventConsumers.containsKey(eventType))
-            itemEventConsumers.put(eventType, new HashMap<String, ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>>());
-        var consumers = itemEventConsumers.get(eventType);
-        if (!consumers.containsKey(itemName))
-            consumers.put(itemName, new ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>());
-        consumers.get(itemName).add(c);
+        subscribe(eventTypes, c);
+    }
 
-        subscribeEventTypes(Set.of( eventType ));
+    /** As addEventConsumer(), returning a Registration that removes c */
+    public Registration subscribe(PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    {
+        return subscribe(Set.of( eventType ), c);
     }
 
-    // invoke consumer callbacks relevant to event
-    public synchronized void handleEvent(PendantEvent e) throws InvalidID, TException, IllegalArgument, RuntimeException
+    /**
+     * Register c as a consumer of all of eventTypes; those not yet subscribed are subscribed in a single call.
+     * Subscriptions are reference counted: once the last consumer of a type is removed the type
+     *  is unsubscribed (unless it was subscribed explicitly via subscribeEventTypes()).
+     */
+    public Registration subscribe(Set<PendantEventType> eventTypes, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
     {
-        // an event we have a consumer for?
-        if (eventConsumers.containsKey(e.getEventType())) {
-            for(Consumer<yaskawa.ext.api.PendantEvent> consumer : eventConsumers.get(e.getEventType())) 
-                consumer.accept(e);
+        synchronized(this) {
+            var table = dispatch;
+            for(var eventType : eventTypes)
+                table = table.with(eventType, c);
+            dispatch = table;
         }
+        subscribeAdded(() -> removeEventConsumer(eventTypes, c));
+        return () -> removeEventConsumer(eventTypes, c);
+    }
+
+    public void removeEventConsumer(PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c)
+    {
+        removeEventConsumer(Set.of( eventType ), c);
+    }
+
+    public void removeEventConsumer(Set<PendantEventType> eventTypes, Consumer<yaskawa.ext.api.PendantEvent> c)
+    {
+        synchronized(this) {
+            var table = dispatch;
+            for(var eventType : eventTypes)
+                table = table.without(eventType, c);
+            dispatch = table;
+        }
+        unsubscribeRemoved();
+    }
 
-        // is this event from a YML item?   
-        var props = e.getProps();     
-        if (e.isSetProps() && (props.containsKey("item") || props.containsKey("identifier"))) {
-            // do we have a consumer for this event type & item ?
-            if (itemEventConsumers.containsKey(e.getEventType())) {
-                var consumers = itemEventConsumers.get(e.getEventType());
-                String itemName = props.containsKey("item") ?
-                                       props.get("item").getSValue()
-                                     : props.get("identifier").getSValue();
-                if (consumers.containsKey(itemName)) {                    
-                    for(Consumer<yaskawa.ext.api.PendantEvent> consumer : consumers.get(itemName)) 
-                        consumer.accept(e);
-                }
+    public void addItemEventConsumer(String itemName, PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    {
+        subscribe(itemName, eventType, c);
+    }
+
+    /** As addItemEventConsumer(), returning a Registration that removes c */
+    public Registration subscribe(String itemName, PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c) throws TException
+    {
+        synchronized(this) {
+            dispatch = dispatch.with(eventType, itemName, c);
+        }
+        subscribeAdded(() -> removeItemEventConsumer(itemName, eventType, c));
+        return () -> removeItemEventConsumer(itemName, eventType, c);
+    }
+
+    public void removeItemEventConsumer(String itemName, PendantEventType eventType, Consumer<yaskawa.ext.api.PendantEvent> c)
+    {
+        synchronized(this) {
+            dispatch = dispatch.without(eventType, itemName, c);
+        }
+        unsubscribeRemoved();
+    }
+
+    // after a consumer was added, subscribe its types if needed - removing it again if that fails
+    protected void subscribeAdded(Runnable remove) throws TException
+    {
+        try {
+            syncSubscriptions();
+        } catch (TException | RuntimeException e) {
+            remove.run();
+            throw e;
+        }
+    }
+
+    // after a consumer was removed, unsubscribe types no longer needed
+    //  (best effort - if it fails, the unwanted events are just ignored)
+    protected void unsubscribeRemoved()
+    {
+        try {
+            syncSubscriptions();
+        } catch (TException e) {}
+    }
+
+    // subscribe the types that have consumers or were subscribed explicitly, and unsubscribe the rest,
+    //  in a call each.  Consumers are changed under this object's lock, but the calls are made outside
+    //  it - serialized and decided from the current consumers, so they reach the service in a consistent
+    //  order however adding & removing consumers interleave
+    protected void syncSubscriptions() throws TException
+    {
+        synchronized(subscriptionLock) {
+            var table = dispatch;
+            var added = EnumSet.noneOf(PendantEventType.class);
+            var unused = EnumSet.noneOf(PendantEventType.class);
+            for(var type : PendantEventType.values()) {
+                boolean wanted = !table.isEmpty(type) || explicitEventTypes.contains(type);
+                if (wanted && !subscribedEventTypes.contains(type))
+                    added.add(type);
+                else if (!wanted && subscribedEventTypes.contains(type))
+                    unused.add(type);
+            }
+            if (!added.isEmpty())
+                subscribeTypes(added);
+            if (!unused.isEmpty())
+                unsubscribeTypes(unused);
+        }
+    }
+
+    // After the Extension has reconnected to the API service, adopt the new ID and
+    //  restore event subscriptions on the service side
+    void restore(Connection conn, long newID) throws TException
+    {
+        id = newID;
+        if (!subscribedEventTypes.isEmpty())
+            conn.pendant().subscribeEventTypes(id, new HashSet<PendantEventType>(subscribedEventTypes));
+    }
+
+    // invoke consumer callbacks relevant to event
+    public void handleEvent(PendantEvent e) throws InvalidID, TException, IllegalArgument, RuntimeException
+    {
+        // no lock needed - the table is immutable & replaced as a whole when consumers change
+        var table = dispatch;
+        var eventType = e.getEventType();
+
+        // an event we have a consumer for?
+        for(Consumer<yaskawa.ext.api.PendantEvent> consumer : table.consumers(eventType)) 
+            consumer.accept(e);
+
+        // is this event from a YML item we have a consumer for?
+        if (e.isSetProps() && table.hasItemConsumers(eventType)) {
+            var props = e.getProps();
+            var item = props.get("item");
+            if (item == null)
+                item = props.get("identifier");
+            if (item != null) {
+                for(Consumer<yaskawa.ext.api.PendantEvent> consumer : table.consumers(eventType, item.getSValue())) 
+                    consumer.accept(e);
             }
         }
     }
 
     protected Extension extension;
-    protected yaskawa.ext.api.Pendant.Client client;
-    protected long id;
+    protected volatile long id;
 
-    protected HashMap<PendantEventType, ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>> eventConsumers;
-    protected HashMap<PendantEventType, HashMap<String, ArrayList<Consumer<yaskawa.ext.api.PendantEvent>>>> itemEventConsumers;
-}
+    protected volatile DispatchTable<PendantEventType, yaskawa.ext.api.PendantEvent> dispatch;
 
+    protected Set<PendantEventType> coalescedEventTypes;
+    protected Set<PendantEventType> explicitEventTypes; // subscribed via subscribeEventTypes(), rather than for a consumer
+    protected final Object subscriptionLock = new Object(); // serializes subscription changes with the service
+
+    // service-side state to replay on reconnect
+    protected Set<PendantEventType> subscribedEventTypes;
+}
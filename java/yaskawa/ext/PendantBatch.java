@@ -0,0 +1,57 @@
+package yaskawa.ext;
+
+import java.util.*;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * Pipelined batch of Pendant API calls - see Pipeline.
+ */
+public class PendantBatch extends Pipeline
+{
+    PendantBatch(Pendant p)
+    {
+        super(p.extension);
+        pendant = p;
+    }
+
+    public Result<Any> property(String itemID, String name)
+    {
+        return add(conn -> conn.pendant(), c -> c.send_property(pendant.id, itemID, name), c -> c.recv_property());
+    }
+
+    public Result<Void> setProperty(String itemID, String name, Any value)
+    {
+        return add(conn -> conn.pendant(), c -> c.send_setProperty(pendant.id, itemID, name, value), c -> { c.recv_setProperty(); return null; });
+    }
+
+    public Result<Void> setProperty(String itemID, String name, Object value)
+    {
+        return setProperty(itemID, name, Extension.toAny(value));
+    }
+
+    public Result<Void> setProperties(List<Pendant.PropValue> propValues)
+    {
+        var pvs = Pendant.propValues(propValues);
+        return addOneway(conn -> conn.pendant(), c -> c.send_setProperties(pendant.id, pvs));
+    }
+
+    public Result<Void> setChartConfig(String chartID, Any config)
+    {
+        return add(conn -> conn.pendant(), c -> c.send_setChartConfig(pendant.id, chartID, config), c -> { c.recv_setChartConfig(); return null; });
+    }
+
+    public Result<Void> setChartData(String chartID, Map<String, Data> dataset, boolean right)
+    {
+        return add(conn -> conn.pendant(), c -> c.send_setChartData(pendant.id, chartID, dataset, right), c -> { c.recv_setChartData(); return null; });
+    }
+
+    public Result<Void> appendChartPoints(String chartID, String key, List<DataPoint> pts, boolean right)
+    {
+        return addOneway(conn -> conn.pendant(), c -> c.send_appendChartPoints(pendant.id, chartID, key, pts, right));
+    }
+
+
+    protected Pendant pendant; // its id is read as calls are sent, so a batch built before a reconnect uses the new one
+}
@@ -0,0 +1,220 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.function.*;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.transport.TTransportException;
+
+import yaskawa.ext.api.*;
+
+
+/**
+ * A batch of API calls that are sent ahead over one connection, with the replies
+ *  read back in order as further calls are sent.
+ * Avoids paying a full network round trip per call when many calls are needed
+ *  (e.g. reading dozens of variables or IO names).
+ * Calls with potentially large replies (e.g. jobSource()) aren't offered in batches.
+ * Each call yields a Result, which holds either the returned value or the exception
+ *  thrown for that individual call once the batch has been executed.
+ * See Controller.batch() and Pendant.batch()
+ */
+public class Pipeline
+{
+    Pipeline(Extension ext)
+    {
+        extension = ext;
+        calls = new ArrayList<PendingCall<?,?>>();
+    }
+
+    public static class Result<T>
+    {
+        /** Value returned by the call; throws the exception the call raised, if any */
+        public T get() throws TException
+        {
+            if (!done)
+                throw new IllegalStateException("Pipeline has not been executed");
+            if (exception != null)
+                throw exception;
+            return value;
+        }
+
+        public boolean isDone() { return done; }
+        public boolean failed() { return exception != null; }
+        public TException exception() { return exception; }
+
+        void complete(T value)
+        {
+            this.value = value;
+            completedNanos = System.nanoTime();
+            done = true;
+        }
+
+        void fail(TException e)
+        {
+            exception = e;
+            completedNanos = System.nanoTime();
+            done = true;
+        }
+
+        // System.nanoTime() when the reply was received
+        long completedNanos() { return completedNanos; }
+
+        protected T value;
+        protected TException exception;
+        protected long completedNanos;
+        protected boolean done = false;
+    }
+
+    /** number of calls in the batch */
+    public int size()
+    {
+        return calls.size();
+    }
+
+    /**
+     * Send the calls, receiving the replies as they arrive.
+     * Application errors (e.g. IllegalArgument) are reported via the Result of the offending call
+     *  and don't affect other calls.  If the connection fails, all outstanding Results
+     *  are failed and the transport exception is thrown.
+     */
+    public void execute() throws TException
+    {
+        if (executed)
+            throw new IllegalStateException("Pipeline already executed");
+        executed = true;
+        if (calls.isEmpty())
+            return;
+
+        var context = extension.callContext.get();
+        var priority = CallContext.priority(context, Priority.Normal);
+        if (extension.actor != null && !extension.actor.onActorThread())
+            extension.actor.submit(this, priority, context);
+        else
+            executeAll(extension, priority, List.of(this));
+    }
+
+    // send the calls of all the given pipelines over one connection
+    static void executeAll(Extension extension, Priority priority, List<Pipeline> pipelines) throws TException
+    {
+        var calls = new ArrayList<PendingCall<?,?>>();
+        for(var pipeline : pipelines)
+            calls.addAll(pipeline.calls);
+
+        extension.exec(priority, conn -> run(conn, calls));
+    }
+
+    // send calls over conn, keeping at most MAX_IN_FLIGHT awaiting their reply
+    static void run(Connection conn, List<PendingCall<?,?>> calls) throws TException
+    {
+        int sent = 0;
+        int received = 0;
+        try {
+            while (received < calls.size()) {
+                while (sent < calls.size() && sent - received < MAX_IN_FLIGHT)
+                    calls.get(sent++).send(conn);
+                calls.get(received).receive(conn);
+                received++;
+            }
+        } catch (TException e) {
+            // connection level failure - remaining replies can't be trusted
+            for(int i = received; i < calls.size(); i++)
+                calls.get(i).result.fail(e);
+            // a transport failure is dealt with by the caller (Extension.invokeDirect), but anything
+            //  else (e.g. a reply with the wrong seqid) leaves unread replies in the stream, so the
+            //  connection must be reopened before reuse
+            if (!(e instanceof TTransportException))
+                conn.broken = true;
+            throw e;
+        }
+    }
+
+
+    // The service writes each reply before it reads the next request, so if every call were
+    //  sent before any reply is read, enough calls (or large enough replies) would fill the
+    //  socket buffers and leave both ends blocked writing.
+    static final int MAX_IN_FLIGHT = 16;
+
+
+    @FunctionalInterface
+    interface Send<C>
+    {
+        void send(C client) throws TException;
+    }
+
+    @FunctionalInterface
+    interface Receive<C,T>
+    {
+        T receive(C client) throws TException;
+    }
+
+    // add a call to the batch - client selects which service client the call is made on
+    <C extends TServiceClient & Connection.Sequenced, T> Result<T> add(Function<Connection, C> client, Send<C> send, Receive<C,T> receive)
+    {
+        if (executed)
+            throw new IllegalStateException("Pipeline already executed");
+        var call = new PendingCall<C,T>(client, send, receive);
+        calls.add(call);
+        return call.result;
+    }
+
+    // add a oneway call - there is no reply, so its Result completes once sent
+    <C extends TServiceClient & Connection.Sequenced> Result<Void> addOneway(Function<Connection, C> client, Send<C> send)
+    {
+        return add(client, send, null);
+    }
+
+
+    static class PendingCall<C extends TServiceClient & Connection.Sequenced, T>
+    {
+        PendingCall(Function<Connection, C> client, Send<C> send, Receive<C,T> receive)
+        {
+            this.client = client;
+            this.send = send;
+            this.receive = receive;
+            result = new Result<T>();
+        }
+
+        void send(Connection conn) throws TException
+        {
+            C c = client.apply(conn);
+            send.send(c);
+            seqid = c.seqid();
+        }
+
+        void receive(Connection conn) throws TException
+        {
+            if (receive == null) { // oneway
+                result.complete(null);
+                return;
+            }
+            C c = client.apply(conn);
+            c.expectSeqid(seqid);
+            try {
+                result.complete(receive.receive(c));
+            } catch (IllegalArgument | InvalidID e) {
+                // reply was read in full, so the stream is still in sync
+                result.fail(e);
+            } catch (TApplicationException e) {
+                // a mismatched reply is left unread & means the stream is out of sync
+                if (e.getType() == TApplicationException.BAD_SEQUENCE_ID
+                    || e.getType() == TApplicationException.WRONG_METHOD_NAME)
+                    throw e;
+                result.fail(e);
+            }
+        }
+
+        protected Function<Connection, C> client;
+        protected Send<C> send;
+        protected Receive<C,T> receive;
+        protected Result<T> result;
+        protected int seqid;
+    }
+
+
+    protected Extension extension;
+    protected ArrayList<PendingCall<?,?>> calls;
+    protected boolean executed = false;
+}
@@ -0,0 +1,17 @@
+package yaskawa.ext;
+
+
+/**
+ * Scheduling class of an API call.
+ * When calls are waiting for a connection, a freed connection goes to the waiting call
+ *  of the most urgent class, so a UI update isn't queued behind bulk transfers.
+ * Pendant UI calls (e.g. setProperty()) default to Interactive and large transfers
+ *  (e.g. jobSource(), registerImageData()) to Bulk; everything else is Normal.
+ * The class can be overridden for all calls made by a task - see Extension.withPriority().
+ */
+public enum Priority
+{
+    Interactive,
+    Normal,
+    Bulk
+}
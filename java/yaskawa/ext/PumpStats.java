@@ -0,0 +1,184 @@
+package yaskawa.ext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+
+/**
+ * Statistics of the event pump run by Extension.run(): how many poll cycles found events,
+ *  how long each poll & dispatch took, and how long the pump then waited before polling again.
+ * Also the time until each event source's reply arrived within a poll, the depth of the dispatch
+ *  queue (see Extension.Builder.dispatchThreads()) and, per event type, the time from a poll
+ *  returning until the consumers of each of its events had completed.
+ *  e.g.  System.out.println(extension.pumpStats());
+ *        extension.pumpStats().dumpEvery(10000, s -> System.out.println(s));
+ */
+public class PumpStats
+{
+    /** measurements of a single poll cycle - see Extension.addPumpCycleConsumer() */
+    public static class Cycle
+    {
+        Cycle(int events, int coalesced, long pollNanos, long dispatchNanos, int queueDepth, long intervalMillis)
+        {
+            this.events = events;
+            this.coalesced = coalesced;
+            this.pollNanos = pollNanos;
+            this.dispatchNanos = dispatchNanos;
+            this.queueDepth = queueDepth;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public String toString()
+        {
+            return String.format("events %d (coalesced %d)  poll %.3f ms  dispatch %.3f ms  queued %d  next in %d ms",
+                                 events, coalesced, pollNanos/1e6, dispatchNanos/1e6, queueDepth, intervalMillis);
+        }
+
+        public final int events;           // events delivered (Controller, Pendant & logging)
+        public final int coalesced;        // events dropped in favour of a later one - see Controller.coalesceEvents()
+        public final long pollNanos;       // round trip of the poll
+        public final long dispatchNanos;   // time spent in consumers (or queueing for dispatch threads)
+        public final int queueDepth;       // events waiting for dispatch threads at the end of the cycle
+        public final long intervalMillis;  // wait before the next poll
+    }
+
+    public long cycles() { return cycles.get(); }
+    public long idleCycles() { return idleCycles.get(); }
+    public long events() { return events.get(); }
+    public long coalesced() { return coalesced.get(); }
+    public long maxEventsPerPoll() { return maxEventsPerPoll.get(); }
+    public long maxPollNanos() { return maxPollNanos.get(); }
+    public long maxDispatchNanos() { return maxDispatchNanos.get(); }
+    public int maxQueueDepth() { return maxQueueDepth.get(); }
+    /** events not delivered to a Flow subscriber (see Extension.controllerEvents()) whose buffer was full */
+    public long subscriberDrops() { return subscriberDrops.get(); }
+    public Cycle lastCycle() { return lastCycle; }
+
+    /** the interval the pump is currently waiting between polls (ms) */
+    public long interval()
+    {
+        var c = lastCycle;
+        return (c != null) ? c.intervalMillis : 0;
+    }
+
+    public double meanPollMillis()
+    {
+        long n = cycles.get();
+        return n == 0 ? 0 : totalPollNanos.get() / 1e6 / n;
+    }
+
+    public double meanDispatchMillis()
+    {
+        long n = cycles.get();
+        return n == 0 ? 0 : totalDispatchNanos.get() / 1e6 / n;
+    }
+
+    public double meanEventsPerPoll()
+    {
+        long n = cycles.get();
+        return n == 0 ? 0 : (double)events.get() / n;
+    }
+
+    /** time from sending a poll until the reply for each source arrived */
+    public LatencyHistogram controllerPollTimes() { return controllerPoll; }
+    public LatencyHistogram pendantPollTimes() { return pendantPoll; }
+    public LatencyHistogram loggingPollTimes() { return loggingPoll; }
+
+    /** time from the poll returning until the consumers of each event had completed, per event type */
+    public Map<Enum<?>, LatencyHistogram> consumerLatencies()
+    {
+        return Collections.unmodifiableMap(consumerLatency);
+    }
+
+    public void reset()
+    {
+        cycles.set(0);
+        idleCycles.set(0);
+        events.set(0);
+        coalesced.set(0);
+        maxEventsPerPoll.set(0);
+        totalPollNanos.set(0);
+        maxPollNanos.set(0);
+        totalDispatchNanos.set(0);
+        maxDispatchNanos.set(0);
+        maxQueueDepth.set(0);
+        subscriberDrops.set(0);
+        controllerPoll.reset();
+        pendantPoll.reset();
+        loggingPoll.reset();
+        consumerLatency.clear();
+        lastCycle = null;
+    }
+
+    /**
+     * Pass these statistics to out every periodMillis (from a background thread),
+     *  until the returned Registration is removed
+     */
+    public Registration dumpEvery(long periodMillis, Consumer<PumpStats> out)
+    {
+        var timer = new Timer("extension-pump-stats", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run() { out.accept(PumpStats.this); }
+        }, periodMillis, periodMillis);
+        return () -> timer.cancel();
+    }
+
+    public String toString()
+    {
+        var sb = new StringBuilder();
+        sb.append(String.format("cycles %d (idle %d)  events %d (coalesced %d, avg %.1f max %d per poll)  interval %d ms  queued max %d  subscriber drops %d%n",
+                                cycles(), idleCycles(), events(), coalesced(), meanEventsPerPoll(), maxEventsPerPoll(),
+                                interval(), maxQueueDepth(), subscriberDrops()));
+        sb.append(String.format("poll avg %.3f max %.3f ms  dispatch avg %.3f max %.3f ms%n",
+                                meanPollMillis(), maxPollNanos()/1e6, meanDispatchMillis(), maxDispatchNanos()/1e6));
+        sb.append(String.format("  %-30s %s%n", "controller poll", controllerPoll));
+        sb.append(String.format("  %-30s %s%n", "pendant poll", pendantPoll));
+        sb.append(String.format("  %-30s %s%n", "logging poll", loggingPoll));
+        for(var e : consumerLatency.entrySet())
+            sb.append(String.format("  %-30s %s%n", e.getKey().getDeclaringClass().getSimpleName()+"."+e.getKey(), e.getValue()));
+        return sb.toString();
+    }
+
+
+    void record(Cycle c)
+    {
+        cycles.incrementAndGet();
+        if (c.events == 0)
+            idleCycles.incrementAndGet();
+        events.addAndGet(c.events);
+        coalesced.addAndGet(c.coalesced);
+        maxEventsPerPoll.accumulateAndGet(c.events, Math::max);
+        totalPollNanos.addAndGet(c.pollNanos);
+        maxPollNanos.accumulateAndGet(c.pollNanos, Math::max);
+        totalDispatchNanos.addAndGet(c.dispatchNanos);
+        maxDispatchNanos.accumulateAndGet(c.dispatchNanos, Math::max);
+        maxQueueDepth.accumulateAndGet(c.queueDepth, Math::max);
+        lastCycle = c;
+    }
+
+    // consumers of an event of eventType completed, nanos after the poll that received it returned
+    void recordConsumer(Enum<?> eventType, long nanos)
+    {
+        consumerLatency.computeIfAbsent(eventType, t -> new LatencyHistogram()).record(nanos);
+    }
+
+
+    protected final AtomicLong cycles = new AtomicLong();
+    protected final AtomicLong idleCycles = new AtomicLong();
+    protected final AtomicLong events = new AtomicLong();
+    protected final AtomicLong coalesced = new AtomicLong();
+    protected final AtomicLong maxEventsPerPoll = new AtomicLong();
+    protected final AtomicLong totalPollNanos = new AtomicLong();
+    protected final AtomicLong maxPollNanos = new AtomicLong();
+    protected final AtomicLong totalDispatchNanos = new AtomicLong();
+    protected final AtomicLong maxDispatchNanos = new AtomicLong();
+    protected final AtomicInteger maxQueueDepth = new AtomicInteger();
+    protected final AtomicLong subscriberDrops = new AtomicLong();
+    protected final LatencyHistogram controllerPoll = new LatencyHistogram();
+    protected final LatencyHistogram pendantPoll = new LatencyHistogram();
+    protected final LatencyHistogram loggingPoll = new LatencyHistogram();
+    protected final ConcurrentHashMap<Enum<?>, LatencyHistogram> consumerLatency = new ConcurrentHashMap<Enum<?>, LatencyHistogram>();
+    protected volatile Cycle lastCycle;
+}
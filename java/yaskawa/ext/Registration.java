@@ -0,0 +1,17 @@
+package yaskawa.ext;
+
+
+/**
+ * Handle to a registered consumer, returned by e.g. Pendant.subscribe().
+ * Removing it stops further calls to the consumer (a call already in progress completes).
+ */
+@FunctionalInterface
+public interface Registration extends AutoCloseable
+{
+    void remove();
+
+    default void close()
+    {
+        remove();
+    }
+}
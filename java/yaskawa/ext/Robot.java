@@ -4,99 +4,77 @@ import java.util.*;
 import java.util.function.*;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.transport.TTransport;
-import org.apache.thrift.transport.TTransportException;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.protocol.TMultiplexedProtocol;
 
 import yaskawa.ext.api.*;
 
 
 public class Robot 
 {
-    Robot(Controller c, TProtocol protocol, int index) throws TTransportException
+    Robot(Controller c, int index)
     {
         this.c = c;
         this.index = index;
-        client = new yaskawa.ext.api.Robot.Client(protocol);
+    }
+
+    /** Asynchronous access to Robot API calls - see Async */
+    public Async<Robot> async()
+    {
+        return new Async<Robot>(c.extension, this);
     }
 
     public String model() throws TException
     {
-        synchronized(c.extension) {
-            return client.model(index);
-        }
+        return c.extension.call(conn -> conn.robot().model(index));
     }
 
     public int dof() throws TException
     {
-        synchronized(c.extension) {
-            return client.dof(index);
-        }
+        return c.extension.call(conn -> conn.robot().dof(index));
     }
 
     public Position jointPosition(OrientationUnit unit) throws TException
     {
-        synchronized(c.extension) {
-            return client.jointPosition(index, unit);
-        }
+        return c.extension.call(conn -> conn.robot().jointPosition(index, unit));
     }
 
     public Position toolTipPosition(CoordinateFrame frame, int tool) throws TException
     {
-        synchronized(c.extension) {
-            return client.toolTipPosition(index, frame, tool);
-        }
+        return c.extension.call(conn -> conn.robot().toolTipPosition(index, frame, tool));
     }
 
 
     public boolean forceLimitingAvailable() throws TException
     {
-        synchronized(c.extension) {
-            return client.forceLimitingAvailable(index);
-        }
+        return c.extension.call(conn -> conn.robot().forceLimitingAvailable(index));
     }
 
     public boolean forceLimitingActive() throws TException
     {
-        synchronized(c.extension) {
-            return client.forceLimitingActive(index);
-        }
+        return c.extension.call(conn -> conn.robot().forceLimitingActive(index));
     }
 
     public boolean forceLimitingStopped() throws TException
     {
-        synchronized(c.extension) {
-            return client.forceLimitingStopped(index);
-        }
+        return c.extension.call(conn -> conn.robot().forceLimitingStopped(index));
     }
 
     public boolean switchBoxAvailable() throws TException
     {
-        synchronized(c.extension) {
-            return client.switchBoxAvailable(index);
-        }
+        return c.extension.call(conn -> conn.robot().switchBoxAvailable(index));
     }
 
     public int activeTool() throws TException
     {
-        synchronized(c.extension) {
-            return client.activeTool(index);
-        }
+        return c.extension.call(conn -> conn.robot().activeTool(index));
     }
 
     public void setActiveTool(int tool) throws TException
     {
-        synchronized(c.extension) {
-            client.setActiveTool(index, tool);
-        }
+        c.extension.exec(conn -> conn.robot().setActiveTool(index, tool));
     }
 
 
     protected Controller c;
-    protected yaskawa.ext.api.Robot.Client client;
     protected int index;
 }
 
@@ -0,0 +1,76 @@
+package yaskawa.ext;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Thread creation for the SDK's internal threads.
+ * Virtual threads are used where requested and the running JVM supports them (Java 21+),
+ *  falling back to daemon platform threads otherwise.  Reflection is used so the SDK
+ *  still builds & runs on older JVMs.
+ */
+class Threads
+{
+    static boolean virtualThreadsAvailable()
+    {
+        return ofVirtual != null;
+    }
+
+    static Thread newThread(String name, Runnable r, boolean virtual)
+    {
+        if (virtual && ofVirtual != null) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = builderName.invoke(builder, name);
+                return (Thread)builderUnstarted.invoke(builder, r);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // fall through to a platform thread
+            }
+        }
+        var t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    static ThreadFactory factory(String prefix, boolean virtual)
+    {
+        var count = new AtomicInteger();
+        return r -> newThread(prefix+"-"+count.incrementAndGet(), r, virtual);
+    }
+
+    // executor starting a new virtual thread for each task, or reusing cached daemon platform threads
+    //  when virtual threads are unavailable
+    static ExecutorService perTaskExecutor(String prefix)
+    {
+        var factory = factory(prefix, true);
+        if (newThreadPerTaskExecutor != null) {
+            try {
+                return (ExecutorService)newThreadPerTaskExecutor.invoke(null, factory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // fall through
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+
+    // Thread.ofVirtual() and the Thread.Builder methods used, or null before Java 21
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+    private static Method newThreadPerTaskExecutor;
+
+    static {
+        try {
+            var builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+    }
+}